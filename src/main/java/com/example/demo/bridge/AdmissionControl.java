@@ -0,0 +1,156 @@
+package com.example.demo.bridge;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+// Decides whether a submission request may enter the JudgeList queue. Runs on every request without touching the
+// JudgeList lock: the queue depth is read from a counter and every token bucket guards only itself.
+public class AdmissionControl {
+    private static final int MAX_TRACKED_KEYS = 100_000;
+    private static final long MIN_SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ExecutorService sweeper = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "admission-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public enum Decision {
+        ADMITTED, RATE_LIMITED, QUEUE_FULL
+    }
+
+    private final IntSupplier queueDepth;
+    private final int maxQueueDepth;
+    private final int priorities;
+    private final TokenBucket[] priorityBuckets;
+    private final double userRate;
+    private final double contestRate;
+    private final double burstSeconds;
+    private final Map<String, TokenBucket> keyBuckets = new ConcurrentHashMap<>();
+    // Shared by keys that arrive while the table is full, until the sweeper has made room.
+    private final TokenBucket overflowUserBucket;
+    private final TokenBucket overflowContestBucket;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long sweptAt = System.nanoTime() - MIN_SWEEP_INTERVAL_NANOS;
+
+    // Rates are in submissions per second and a rate of 0 disables that limit. Buckets hold burstSeconds worth of
+    // tokens, so a quiet client can briefly submit faster than its rate.
+    public AdmissionControl(IntSupplier queueDepth, int maxQueueDepth, double[] priorityRates,
+                            double userRate, double contestRate, double burstSeconds) {
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.priorities = priorityRates.length;
+        this.priorityBuckets = new TokenBucket[priorityRates.length];
+        for (int i = 0; i < priorityRates.length; i++) {
+            priorityBuckets[i] = priorityRates[i] > 0 ? new TokenBucket(priorityRates[i], burstSeconds) : null;
+        }
+        this.userRate = userRate;
+        this.contestRate = contestRate;
+        this.burstSeconds = burstSeconds;
+        this.overflowUserBucket = userRate > 0 ? new TokenBucket(userRate, burstSeconds) : null;
+        this.overflowContestBucket = contestRate > 0 ? new TokenBucket(contestRate, burstSeconds) : null;
+    }
+
+    public Decision tryAdmit(int priority, Object userId, Object contestId) {
+        // Lower priorities (higher numbers) get a smaller share of the queue, so they are shed first as it fills.
+        if (maxQueueDepth > 0 && queueDepth.getAsInt() >= (long) maxQueueDepth * (priorities - priority) / priorities) {
+            return Decision.QUEUE_FULL;
+        }
+        // A request spends a token from every bucket that applies or from none of them, so one client over its
+        // limit never drains a bucket it shares with others (e.g. its contest's).
+        TokenBucket user = userId != null && userRate > 0 ? keyBucket("user:" + userId, userRate, overflowUserBucket) : null;
+        if (user != null && !user.tryAcquire()) {
+            return Decision.RATE_LIMITED;
+        }
+        TokenBucket contest = contestId != null && contestRate > 0
+                ? keyBucket("contest:" + contestId, contestRate, overflowContestBucket) : null;
+        if (contest != null && !contest.tryAcquire()) {
+            refund(user);
+            return Decision.RATE_LIMITED;
+        }
+        TokenBucket bucket = priorityBuckets[priority];
+        if (bucket != null && !bucket.tryAcquire()) {
+            refund(user);
+            refund(contest);
+            return Decision.RATE_LIMITED;
+        }
+        return Decision.ADMITTED;
+    }
+
+    private static void refund(TokenBucket bucket) {
+        if (bucket != null) {
+            bucket.refund();
+        }
+    }
+
+    private TokenBucket keyBucket(String key, double rate, TokenBucket overflow) {
+        TokenBucket bucket = keyBuckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (keyBuckets.size() >= MAX_TRACKED_KEYS) {
+            requestSweep();
+            return overflow;
+        }
+        return keyBuckets.computeIfAbsent(key, k -> new TokenBucket(rate, burstSeconds));
+    }
+
+    // Eviction runs off the request path, at most once a second however often the table is found full.
+    private void requestSweep() {
+        if (System.nanoTime() - sweptAt < MIN_SWEEP_INTERVAL_NANOS || !sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        sweeper.execute(() -> {
+            try {
+                // Full buckets belong to idle clients and carry no state worth keeping.
+                keyBuckets.values().removeIf(TokenBucket::isFull);
+            } finally {
+                sweptAt = System.nanoTime();
+                sweeping.set(false);
+            }
+        });
+    }
+
+    private static class TokenBucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(double rate, double burstSeconds) {
+            this.ratePerNano = rate / 1e9;
+            this.capacity = Math.max(1, rate * burstSeconds);
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            refill();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.demo.bridge;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shared pool of heap buffers for outbound packets, in power-of-two size classes. Buffers go back to the pool once
+// OutboundQueue has written them, so sending a multi-megabyte source does not allocate a fresh frame every time.
+public final class BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 24;
+    private static final long MAX_RETAINED_BYTES = 64L * 1024 * 1024;
+
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] free = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+    private static final AtomicLong retainedBytes = new AtomicLong();
+
+    static {
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    // Returns a cleared buffer with at least the requested capacity.
+    public static ByteBuffer acquire(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity - 1)));
+        if (shift > MAX_SHIFT) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer buffer = free[shift - MIN_SHIFT].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(1 << shift);
+        }
+        retainedBytes.addAndGet(-buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    // The caller must not touch the buffer, or any view of it, afterwards.
+    public static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int shift = 31 - Integer.numberOfLeadingZeros(capacity);
+        if (capacity != 1 << shift || shift < MIN_SHIFT || shift > MAX_SHIFT || !buffer.hasArray()) {
+            return;
+        }
+        if (retainedBytes.addAndGet(capacity) > MAX_RETAINED_BYTES) {
+            retainedBytes.addAndGet(-capacity);
+            return;
+        }
+        free[shift - MIN_SHIFT].add(buffer);
+    }
+
+    public static long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+}
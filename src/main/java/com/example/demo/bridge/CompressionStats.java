@@ -0,0 +1,54 @@
+package com.example.demo.bridge;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class CompressionStats {
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder storedPackets = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+
+    void record(int level, int uncompressedSize, int compressedSize, long nanos) {
+        packets.increment();
+        if (level == 0) {
+            storedPackets.increment();
+        }
+        uncompressedBytes.add(uncompressedSize);
+        compressedBytes.add(compressedSize);
+        compressNanos.add(nanos);
+    }
+
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    public long getStoredPackets() {
+        return storedPackets.sum();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+
+    public double getRatio() {
+        long uncompressed = uncompressedBytes.sum();
+        return uncompressed == 0 ? 1.0 : (double) compressedBytes.sum() / uncompressed;
+    }
+
+    @Override
+    public String toString() {
+        long count = packets.sum();
+        return String.format("packets=%d stored=%d in=%d out=%d ratio=%.3f avgMicros=%.1f",
+                count, storedPackets.sum(), uncompressedBytes.sum(), compressedBytes.sum(), getRatio(),
+                count == 0 ? 0.0 : compressNanos.sum() / 1000.0 / count);
+    }
+}
@@ -0,0 +1,414 @@
+package com.example.demo.bridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class JsonEventLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(JsonEventLog.class);
+
+    public static final long NO_SUBMISSION = Long.MIN_VALUE;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int INITIAL_RECORD_SIZE = 4096;
+    private static final long REOPEN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long DROP_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // Fixed bytes per record plus room for two longs; each string char takes at most 6 bytes, as a control-char escape.
+    private static final int RECORD_OVERHEAD = 160;
+    private static final int MAX_BYTES_PER_CHAR = 6;
+
+    private static final byte[] TIMESTAMP = ascii("{\"timestamp\":");
+    private static final byte[] LEVEL = ascii(",\"level\":\"");
+    private static final byte[] JUDGE = ascii("\",\"judge\":");
+    private static final byte[] ADDRESS = ascii(",\"address\":");
+    private static final byte[] SUBMISSION = ascii(",\"submission\":");
+    private static final byte[] ACTION = ascii(",\"action\":");
+    private static final byte[] INFO = ascii(",\"info\":");
+    private static final byte[] END = ascii("}\n");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] MIN_LONG = ascii(Long.toString(Long.MIN_VALUE));
+
+    public enum Level {
+        INFO, WARN, ERROR;
+
+        private final byte[] bytes = ascii(name());
+    }
+
+    private final boolean enabled;
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private volatile long consumed;
+    private volatile boolean running;
+
+    private final Path directory;
+    private final String baseName;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Deque<Path> segments = new ArrayDeque<>();
+    private final Thread writer;
+
+    // Only touched by the writer thread.
+    private byte[] record = new byte[INITIAL_RECORD_SIZE];
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int segmentIndex;
+    private boolean failing;
+    private long reopenAt;
+    private long reportedDrops;
+    private long dropReportAt;
+
+    public JsonEventLog(boolean enabled, Path directory, String baseName, int capacity, int segmentSize, int maxSegments) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Event log capacity must be a power of two: " + capacity);
+        }
+        this.enabled = enabled;
+        this.ring = new Event[capacity];
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Event();
+            published.set(i, -1);
+        }
+        this.directory = directory;
+        this.baseName = baseName;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.writer = new Thread(this::runWriter, "json-event-log");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        openSegment();
+        running = true;
+        writer.start();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getPending() {
+        return claimed.get() - consumed;
+    }
+
+    // Never blocks the caller: when the writer falls a full ring behind, the event is dropped and counted, and the
+    // writer warns about it within DROP_REPORT_INTERVAL_NANOS.
+    public void log(Level level, String judge, String address, long submissionId, String action, String info) {
+        publish(false, level, judge, address, submissionId, action, info);
+    }
+
+    // For events that must not be lost, such as a submission's final result: waits for room in the ring instead of
+    // dropping. Only drops when the log is closing.
+    public void logBlocking(Level level, String judge, String address, long submissionId, String action, String info) {
+        publish(true, level, judge, address, submissionId, action, info);
+    }
+
+    private void publish(boolean wait, Level level, String judge, String address, long submissionId, String action,
+                         String info) {
+        if (!enabled) {
+            return;
+        }
+
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                if (!wait || !running) {
+                    dropped.increment();
+                    return;
+                }
+                Thread.yield();
+            } else if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        int index = (int) (sequence & mask);
+        Event event = ring[index];
+        event.timestamp = System.currentTimeMillis();
+        event.level = level;
+        event.judge = judge;
+        event.address = address;
+        event.submissionId = submissionId;
+        event.action = action;
+        event.info = info;
+        published.lazySet(index, sequence);
+    }
+
+    private void runWriter() {
+        while (running || consumed < claimed.get()) {
+            long sequence = consumed;
+            int index = (int) (sequence & mask);
+            if (published.get(index) != sequence) {
+                reportDrops();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            if ((sequence & 0xfff) == 0) {
+                reportDrops();
+            }
+
+            Event event = ring[index];
+            try {
+                write(event);
+            } catch (IOException | RuntimeException e) {
+                writeFailed(e);
+            }
+            event.clear();
+            consumed = sequence + 1;
+        }
+    }
+
+    private void reportDrops() {
+        long now = System.nanoTime();
+        if (now - dropReportAt < 0) {
+            return;
+        }
+        dropReportAt = now + DROP_REPORT_INTERVAL_NANOS;
+        long total = dropped.sum();
+        if (total > reportedDrops) {
+            logger.warn("JSON event log dropped {} more events ({} in total)", total - reportedDrops, total);
+            reportedDrops = total;
+        }
+    }
+
+    private void write(Event event) throws IOException {
+        int required = RECORD_OVERHEAD + MAX_BYTES_PER_CHAR
+                * (length(event.judge) + length(event.address) + length(event.action) + length(event.info));
+        if (required > record.length) {
+            record = new byte[Math.max(required, record.length * 2)];
+        }
+        int length = encode(event, record);
+
+        if (length > segmentSize) {
+            logger.warn("Dropping {}-byte JSON event larger than the log segment", length);
+            return;
+        }
+        if (mapped == null) {
+            // A segment failed to open; retry now and then and drop events in between so the ring keeps moving.
+            if (System.nanoTime() - reopenAt < 0) {
+                dropped.increment();
+                return;
+            }
+            openSegment();
+        } else if (length > mapped.remaining()) {
+            closeSegment();
+            openSegment();
+        }
+        mapped.put(record, 0, length);
+
+        if (failing) {
+            failing = false;
+            logger.warn("JSON event log is writing again, {} events dropped so far", dropped.sum());
+        }
+    }
+
+    private void writeFailed(Exception e) {
+        dropped.increment();
+        reopenAt = System.nanoTime() + REOPEN_INTERVAL_NANOS;
+        if (!failing) {
+            failing = true;
+            logger.error("JSON event log cannot write to {}, dropping events until a segment can be opened", directory, e);
+        }
+        try {
+            closeSegment();
+        } catch (IOException | RuntimeException closeError) {
+            logger.debug("Error closing failed JSON event log segment", closeError);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path path = directory.resolve(baseName + "." + System.currentTimeMillis() + "." + segmentIndex++ + ".log");
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.addLast(path);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        while (segments.size() > maxSegments) {
+            Files.deleteIfExists(segments.removeFirst());
+        }
+    }
+
+    // Safe to call with no segment open, or with a channel whose mapping failed.
+    private void closeSegment() throws IOException {
+        MappedByteBuffer current = mapped;
+        FileChannel currentChannel = channel;
+        mapped = null;
+        channel = null;
+        if (currentChannel == null) {
+            return;
+        }
+        try {
+            if (current != null) {
+                current.force();
+                currentChannel.truncate(current.position());
+            }
+        } finally {
+            currentChannel.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+            if (writer.isAlive()) {
+                // The writer still owns the segment; leave it to the OS rather than race it.
+                logger.warn("JSON event log writer did not finish within 5 s, {} events unwritten", getPending());
+            } else {
+                closeSegment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Error closing JSON event log", e);
+        }
+        if (dropped.sum() > 0) {
+            logger.warn("JSON event log dropped {} events", dropped.sum());
+        }
+    }
+
+    // Encodes into an array sized by write() for the worst case, so there are no bounds checks beyond the array's own
+    // and the constant parts go in as bulk copies. Returns the encoded length.
+    private static int encode(Event event, byte[] out) {
+        int pos = put(out, 0, TIMESTAMP);
+        pos = putLong(out, pos, event.timestamp);
+        pos = put(out, pos, LEVEL);
+        pos = put(out, pos, event.level.bytes);
+        pos = put(out, pos, JUDGE);
+        pos = putString(out, pos, event.judge);
+        pos = put(out, pos, ADDRESS);
+        pos = putString(out, pos, event.address);
+        pos = put(out, pos, SUBMISSION);
+        pos = event.submissionId == NO_SUBMISSION ? put(out, pos, NULL) : putLong(out, pos, event.submissionId);
+        pos = put(out, pos, ACTION);
+        pos = putString(out, pos, event.action);
+        pos = put(out, pos, INFO);
+        pos = putString(out, pos, event.info);
+        return put(out, pos, END);
+    }
+
+    private static int put(byte[] out, int pos, byte[] bytes) {
+        System.arraycopy(bytes, 0, out, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    private static int putLong(byte[] out, int pos, long value) {
+        if (value == Long.MIN_VALUE) {
+            return put(out, pos, MIN_LONG);
+        }
+        if (value < 0) {
+            out[pos++] = '-';
+            value = -value;
+        }
+        int end = pos + digits(value);
+        for (int i = end - 1; i >= pos; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int putString(byte[] out, int pos, String value) {
+        if (value == null) {
+            return put(out, pos, NULL);
+        }
+        out[pos++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out[pos++] = '\\';
+                out[pos++] = (byte) c;
+            } else if (c < 0x20) {
+                out[pos++] = '\\';
+                out[pos++] = 'u';
+                out[pos++] = '0';
+                out[pos++] = '0';
+                out[pos++] = (byte) Character.forDigit(c >> 4, 16);
+                out[pos++] = (byte) Character.forDigit(c & 0xf, 16);
+            } else if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out[pos++] = '?';
+            } else {
+                out[pos++] = (byte) (0xe0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        out[pos++] = '"';
+        return pos;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static class Event {
+        private long timestamp;
+        private Level level;
+        private String judge;
+        private String address;
+        private long submissionId;
+        private String action;
+        private String info;
+
+        private void clear() {
+            level = null;
+            judge = null;
+            address = null;
+            action = null;
+            info = null;
+        }
+    }
+}
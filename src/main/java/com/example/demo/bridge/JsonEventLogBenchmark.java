@@ -0,0 +1,146 @@
+package com.example.demo.bridge;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Events per second through JsonEventLog against the path it replaced: a Map.of per event, serialized with Jackson
+// and handed to the judge.json.bridge logger on the calling thread. The old path gets non-null fields, since Map.of
+// throws on the nulls real events carry, and runs against whatever slf4j binding is on the classpath.
+public class JsonEventLogBenchmark {
+    private static final Logger jsonLog = LoggerFactory.getLogger("judge.json.bridge");
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String JUDGE = "judge-01";
+    private static final String ADDRESS = "/10.0.0.17:53124";
+    private static final String ACTION = "test-case";
+    private static final String INFO = "judge successfully authenticated";
+
+    private static final int CAPACITY = 65536;
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        // One untimed pass of each warms up the JIT before the measured pass.
+        oldPath(events / 4, threads);
+        eventLog(events / 4, threads, false);
+        eventLog(events / 4, threads, true);
+
+        long oldNanos = oldPath(events, threads);
+        System.out.printf("Map.of + Jackson:       %,d events in %d ms, %,.0f events/s%n",
+                events, TimeUnit.NANOSECONDS.toMillis(oldNanos), perSecond(events, oldNanos));
+        // Unpaced shows what a call costs the I/O thread; once the ring fills, the excess is dropped, not written.
+        eventLog(events, threads, false);
+        // Paced callers back off while the ring is full, so this is the rate the writer sustains without drops.
+        eventLog(events, threads, true);
+    }
+
+    private static long oldPath(int events, int threads) throws InterruptedException {
+        return run(events, threads, i -> {
+            Map<String, Object> logData = Map.of(
+                    "judge", JUDGE,
+                    "address", ADDRESS,
+                    "submission", (long) i,
+                    "action", ACTION,
+                    "info", INFO
+            );
+            try {
+                jsonLog.info(objectMapper.writeValueAsString(logData));
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static void eventLog(int events, int threads, boolean paced) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("event-log-benchmark");
+        JsonEventLog eventLog = new JsonEventLog(true, directory, "benchmark", CAPACITY, 64 * 1024 * 1024, 2);
+        eventLog.start();
+        try {
+            long start = System.nanoTime();
+            long callNanos = run(events, threads, i -> {
+                // Yield rather than spin, or on a small box the waiting callers starve the writer they wait on.
+                while (paced && eventLog.getPending() >= CAPACITY - threads) {
+                    Thread.yield();
+                }
+                eventLog.log(JsonEventLog.Level.INFO, JUDGE, ADDRESS, i, ACTION, INFO);
+            });
+            while (eventLog.getPending() > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            long totalNanos = System.nanoTime() - start;
+            long written = events - eventLog.getDropped();
+            System.out.printf("JsonEventLog (%s): %,d events in %d ms, %,.0f events/s, "
+                            + "%,d written in %d ms (%,.0f events/s), %,d dropped%n",
+                    paced ? "paced" : "burst", events, TimeUnit.NANOSECONDS.toMillis(callNanos),
+                    perSecond(events, callNanos), written, TimeUnit.NANOSECONDS.toMillis(totalNanos),
+                    perSecond(written, totalNanos), eventLog.getDropped());
+        } finally {
+            eventLog.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    private static long run(int events, int threads, EventTask task) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        int perThread = events / threads;
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            int last = t == threads - 1 ? events : first + perThread;
+            Thread worker = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = first; i < last; i++) {
+                    task.run(i);
+                }
+            }, "benchmark-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static double perSecond(long events, long nanos) {
+        return events * 1e9 / Math.max(nanos, 1);
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    private interface EventTask {
+        void run(int i);
+    }
+}
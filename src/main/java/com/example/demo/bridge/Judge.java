@@ -0,0 +1,32 @@
+package com.example.demo.bridge;
+
+import java.io.IOException;
+
+// A connected judge as JudgeList sees it when dispatching. Implementations are called with the JudgeList lock held,
+// so none of these may block on the network.
+public interface Judge {
+    String getName();
+
+    boolean canJudge(String problem, String language, String judgeId);
+
+    boolean isDisabled();
+
+    void setDisabled(boolean disabled);
+
+    double getLoad();
+
+    int getSlots();
+
+    int getInFlightCount();
+
+    boolean hasFreeSlot();
+
+    void submit(long submissionId, String problem, String language, SubmissionSource source) throws IOException;
+
+    void abort(long submissionId);
+
+    boolean release(long submissionId);
+
+    // Closes the connection now when forced; otherwise stops new dispatches and closes once in-flight work is done.
+    void disconnect(boolean force);
+}
@@ -0,0 +1,566 @@
+package com.example.demo.bridge;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// State for one judge session. Packets are applied by this connection's actor, one at a time and in arrival order;
+// the slot table is also read by JudgeList from other threads and stays synchronized.
+public class JudgeConnection implements Judge {
+    private static final Logger logger = LoggerFactory.getLogger(JudgeConnection.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Binary packets at least this large are deflated once a compact codec has been negotiated.
+    private static final int CODEC_COMPRESSION_THRESHOLD = 1024;
+
+    // Upper bound on the slot count a judge may advertise in its handshake.
+    private static final int MAX_SLOTS = 256;
+
+    private final WebSocketSession session;
+    private final JudgeService judgeService;
+    private final JudgeList judges;
+    private final JsonEventLog eventLog;
+    private final JudgePipeline pipeline;
+    private final Map<String, JudgeConnection> registry;
+    private final JudgePipeline.SerialExecutor actor;
+    private final JudgePipeline.SerialExecutor persistence;
+    private final OutboundQueue outbound;
+    private final String remoteAddress;
+
+    private volatile String judgeName;
+    private volatile PacketCodec codec;
+    private volatile Set<String> problems = Set.of();
+    private volatile Set<String> executors = Set.of();
+    private volatile double load;
+    private volatile boolean disabled;
+    private volatile boolean closeWhenIdle;
+    private ScheduledFuture<?> pingTask;
+    // Written under the monitor, read without it by JudgeList's load comparator.
+    private volatile int slots = 1;
+    private long[] inFlight = new long[1];
+    private int inFlightCount;
+
+    public JudgeConnection(WebSocketSession session, JudgeService judgeService, JudgeList judges, JsonEventLog eventLog,
+                           JudgePipeline pipeline, Map<String, JudgeConnection> registry) {
+        this.session = session;
+        this.judgeService = judgeService;
+        this.judges = judges;
+        this.eventLog = eventLog;
+        this.pipeline = pipeline;
+        this.registry = registry;
+        this.actor = pipeline.newActor();
+        this.persistence = pipeline.newPersistenceQueue();
+        this.outbound = new OutboundQueue(session);
+        this.remoteAddress = String.valueOf(session.getRemoteAddress());
+        // A dispatch rejected for backpressure leaves the submission queued; offer it again once the writer catches up.
+        this.outbound.setOnDrained(() -> actor.execute(() -> judges.onJudgeWritable(this)));
+    }
+
+    @Override
+    public String getName() {
+        return judgeName;
+    }
+
+    @Override
+    public boolean canJudge(String problem, String language, String judgeId) {
+        return problems.contains(problem) && executors.contains(language) && (judgeId == null || judgeId.equals(judgeName));
+    }
+
+    @Override
+    public boolean isDisabled() {
+        return disabled || closeWhenIdle;
+    }
+
+    @Override
+    public void setDisabled(boolean disabled) {
+        this.disabled = disabled;
+    }
+
+    @Override
+    public double getLoad() {
+        return load;
+    }
+
+    @Override
+    public void disconnect(boolean force) {
+        if (force || getInFlightCount() == 0) {
+            closeSession();
+        } else {
+            closeWhenIdle = true;
+        }
+    }
+
+    public PacketCodec getCodec() {
+        return codec;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    public int getActorQueueDepth() {
+        return actor.getQueueDepth();
+    }
+
+    public int getPersistenceQueueDepth() {
+        return persistence.getQueueDepth();
+    }
+
+    void opened() {
+        logger.info("Judge connected from: {}", remoteAddress);
+        logEvent(JsonEventLog.Level.INFO, "connect");
+    }
+
+    // Called on the I/O thread once the packet has been decoded.
+    void receive(Map<String, Object> packet) {
+        actor.execute(() -> handlePacket(packet));
+    }
+
+    // Runs a task the transport built for this connection in order with its packets, e.g. forwarding a relayed one.
+    void inOrder(Runnable task) {
+        actor.execute(task);
+    }
+
+    void receiveMalformed(String payload) {
+        actor.execute(() -> handleMalformed(payload));
+    }
+
+    void receiveUndecodable(String codecName) {
+        actor.execute(() -> logEvent(JsonEventLog.Level.ERROR, "malformed " + codecName + " packet"));
+    }
+
+    void closed() {
+        // Stop writing right away; cleanup still queues behind any packets the judge sent before closing.
+        outbound.close();
+        actor.execute(this::handleClosed);
+    }
+
+    @Override
+    public int getSlots() {
+        return slots;
+    }
+
+    @Override
+    public synchronized int getInFlightCount() {
+        return inFlightCount;
+    }
+
+    @Override
+    public synchronized boolean hasFreeSlot() {
+        return inFlightCount < slots;
+    }
+
+    public synchronized long[] getInFlightSubmissions() {
+        return Arrays.copyOf(inFlight, inFlightCount);
+    }
+
+    @Override
+    public void submit(long submissionId, String problem, String language, SubmissionSource source) throws IOException {
+        if (!claimSlot(submissionId)) {
+            throw new IOException("Judge " + judgeName + " has no free slot for submission " + submissionId);
+        }
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("name", "submission-request");
+        request.put("submission-id", submissionId);
+        request.put("problem-id", problem);
+        request.put("language", language);
+        try {
+            sendSource(source, request);
+        } catch (IOException e) {
+            release(submissionId);
+            throw e;
+        }
+    }
+
+    @Override
+    public void abort(long submissionId) {
+        sendResponse(Map.of("name", "terminate-submission", "submission-id", submissionId));
+    }
+
+    @Override
+    public synchronized boolean release(long submissionId) {
+        for (int i = 0; i < inFlightCount; i++) {
+            if (inFlight[i] == submissionId) {
+                inFlight[i] = inFlight[--inFlightCount];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean claimSlot(long submissionId) {
+        for (int i = 0; i < inFlightCount; i++) {
+            if (inFlight[i] == submissionId) {
+                return true;
+            }
+        }
+        if (inFlightCount == slots) {
+            return false;
+        }
+        inFlight[inFlightCount++] = submissionId;
+        return true;
+    }
+
+    private synchronized void setSlots(int slots) {
+        this.slots = slots;
+        this.inFlight = Arrays.copyOf(inFlight, Math.max(slots, inFlightCount));
+    }
+
+    private void handleClosed() {
+        if (pingTask != null) {
+            pingTask.cancel(false);
+        }
+        PacketCodec current = codec;
+        if (current != null) {
+            current.close();
+        }
+        String name = judgeName;
+        if (name != null) {
+            registry.remove(name, this);
+            judges.remove(this);
+            persistence.execute(() -> judgeService.disconnectJudge(name));
+        }
+        logger.info("Judge disconnected from: {} with name {}", remoteAddress, name);
+        logEvent(JsonEventLog.Level.INFO, "disconnect", "judge disconnected");
+        for (long submissionId : getInFlightSubmissions()) {
+            persistence.execute(() -> judgeService.handleSubmissionError(submissionId, "IE", "IE", ""));
+            logResult(JsonEventLog.Level.ERROR, "close", "IE due to shutdown on grading", submissionId);
+        }
+    }
+
+    private void handlePacket(Map<String, Object> packet) {
+        String packetName = (String) packet.get("name");
+        if (packetName == null) {
+            handleMalformed(packet);
+            return;
+        }
+        switch (packetName) {
+            case "handshake":
+                handleHandshake(packet);
+                break;
+            case "supported-problems":
+                handleSupportedProblems(packet);
+                break;
+            case "grading-begin":
+                handleGradingBegin(packet);
+                break;
+            case "grading-end":
+                handleGradingEnd(packet);
+                break;
+            case "compile-error":
+                handleCompileError(packet);
+                break;
+            case "compile-message":
+                handleCompileMessage(packet);
+                break;
+            case "batch-begin":
+                handleBatchBegin(packet);
+                break;
+            case "batch-end":
+                handleBatchEnd(packet);
+                break;
+            case "test-case-status":
+                handleTestCaseStatus(packet);
+                break;
+            case "internal-error":
+                handleInternalError(packet);
+                break;
+            case "submission-terminated":
+                handleSubmissionTerminated(packet);
+                break;
+            case "ping-response":
+                handlePingResponse(packet);
+                break;
+            default:
+                handleMalformed(packet);
+                break;
+        }
+    }
+
+    private void handleHandshake(Map<String, Object> packet) {
+        String judgeId = (String) packet.get("id");
+        String key = (String) packet.get("key");
+
+        if (authenticate(judgeId, key)) {
+            judgeName = judgeId;
+            Object advertisedSlots = packet.get("slots");
+            if (advertisedSlots instanceof Number) {
+                setSlots(Math.max(1, Math.min(MAX_SLOTS, ((Number) advertisedSlots).intValue())));
+            }
+            problems = stringSet(packet.get("problems"));
+            executors = stringSet(packet.get("executors"));
+            registry.put(judgeId, this);
+            persistence.execute(() -> judgeService.connectJudge(judgeId));
+
+            // The reply still goes out as JSON text; both sides switch to the negotiated codec after it. The codec
+            // is set before the reply is queued so a binary packet sent in answer is never seen without it, and
+            // nothing else is sent until the reply is queued.
+            PacketCodec negotiated = PacketCodec.negotiate(packet.get("codecs"), CODEC_COMPRESSION_THRESHOLD);
+            Map<String, Object> response = new HashMap<>();
+            response.put("name", "handshake-success");
+            if (negotiated != null) {
+                response.put("codec", negotiated.getName());
+            }
+            codec = negotiated;
+            try {
+                offer(new TextMessage(objectMapper.writeValueAsString(response)), response);
+            } catch (IOException e) {
+                logger.error("Error sending response", e);
+            }
+            // Pings run on the actor too, so they are ordered with everything else this connection sends.
+            pingTask = pipeline.scheduleAtFixedRate(() -> actor.execute(this::ping), 10, TimeUnit.SECONDS);
+            // Registered last: JudgeList may dispatch to this judge straight away.
+            judges.register(this);
+            logger.info("Judge authenticated: {} ({}, {} slots)", remoteAddress, judgeId, slots);
+            logEvent(JsonEventLog.Level.INFO, "auth", "judge successfully authenticated");
+        } else {
+            logger.warn("Judge authentication failure: {}", remoteAddress);
+            eventLog.log(JsonEventLog.Level.WARN, judgeId, remoteAddress, JsonEventLog.NO_SUBMISSION, "auth", "judge failed authentication");
+            closeSession();
+        }
+    }
+
+    // Queued behind any pending frames and run by the outbound writer, so it never races a send and never blocks
+    // the caller, which may be holding the JudgeList lock.
+    private void closeSession() {
+        outbound.closeAfterPending();
+    }
+
+    private static Set<String> stringSet(Object values) {
+        if (!(values instanceof Collection)) {
+            return Set.of();
+        }
+        Set<String> strings = new HashSet<>();
+        for (Object value : (Collection<?>) values) {
+            // Problems arrive as [code, mtime] pairs; only the code matters for dispatch.
+            if (value instanceof List && !((List<?>) value).isEmpty()) {
+                value = ((List<?>) value).get(0);
+            }
+            strings.add(String.valueOf(value));
+        }
+        return strings;
+    }
+
+    private boolean authenticate(String judgeId, String key) {
+        // Implement judge authentication logic here
+        // Example using HMAC-SHA256:
+        try {
+            String secretKey = "your-secret-key";
+            Mac mac = Mac.getInstance("HmacSHA256");
+            SecretKeySpec secretKeySpec = new SecretKeySpec(secretKey.getBytes(), "HmacSHA256");
+            mac.init(secretKeySpec);
+            byte[] hashBytes = mac.doFinal(judgeId.getBytes());
+            String computedHash = Base64.getEncoder().encodeToString(hashBytes);
+            return computedHash.equals(key);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            logger.error("Error during judge authentication", e);
+            return false;
+        }
+    }
+
+    private void handleSupportedProblems(Map<String, Object> packet) {
+        problems = stringSet(packet.get("problems"));
+        judges.updateProblems(this);
+        // Update supported problems for the judge
+        // Implement the logic to update the judge's supported problems in the database
+        logEvent(JsonEventLog.Level.INFO, "update-problems", String.valueOf(packet.get("problems")));
+    }
+
+    private void handleGradingBegin(Map<String, Object> packet) {
+        long submissionId = Long.parseLong(packet.get("submission-id").toString());
+        claimSlot(submissionId);
+        // Update submission status to "G" (Grading) in the database
+        // Delete existing test case records for the submission
+        logEvent(JsonEventLog.Level.INFO, "grading-begin", packet);
+    }
+
+    private void handleGradingEnd(Map<String, Object> packet) {
+        long submissionId = Long.parseLong(packet.get("submission-id").toString());
+        finished(submissionId);
+        // Update submission status, result, score, time, memory, etc. in the database
+        // Update user statistics and problem statistics
+        // Post grading-end event
+        logResult(JsonEventLog.Level.INFO, "grading-end", packet);
+    }
+
+    private void handleCompileError(Map<String, Object> packet) {
+        long submissionId = Long.parseLong(packet.get("submission-id").toString());
+        String errorMessage = (String) packet.get("log");
+        finished(submissionId);
+        // Update submission status to "CE" (Compile Error) and save the error message in the database
+        // Post compile-error event
+        logResult(JsonEventLog.Level.INFO, "compile-error", packet);
+    }
+
+    private void handleCompileMessage(Map<String, Object> packet) {
+        long submissionId = Long.parseLong(packet.get("submission-id").toString());
+        String compileMessage = (String) packet.get("log");
+        // Update submission with the compile message in the database
+        // Post compile-message event
+        logEvent(JsonEventLog.Level.INFO, "compile-message", packet);
+    }
+
+    private void handleBatchBegin(Map<String, Object> packet) {
+        // Handle batch begin logic
+        logEvent(JsonEventLog.Level.INFO, "batch-begin", packet);
+    }
+
+    private void handleBatchEnd(Map<String, Object> packet) {
+        // Handle batch end logic
+        logEvent(JsonEventLog.Level.INFO, "batch-end", packet);
+    }
+
+    private void handleTestCaseStatus(Map<String, Object> packet) {
+        long submissionId = Long.parseLong(packet.get("submission-id").toString());
+        // Update test case results in the database
+        // Post test-case event
+        logEvent(JsonEventLog.Level.INFO, "test-case", packet);
+    }
+
+    private void handleInternalError(Map<String, Object> packet) {
+        long submissionId = Long.parseLong(packet.get("submission-id").toString());
+        String errorMessage = (String) packet.get("message");
+        finished(submissionId);
+        // Update submission status to "IE" (Internal Error) and save the error message in the database
+        // Post internal-error event
+        logResult(JsonEventLog.Level.INFO, "internal-error", packet);
+    }
+
+    private void handleSubmissionTerminated(Map<String, Object> packet) {
+        long submissionId = Long.parseLong(packet.get("submission-id").toString());
+        finished(submissionId);
+        // Update submission status to "AB" (Aborted) in the database
+        // Post aborted event
+        logResult(JsonEventLog.Level.INFO, "aborted", packet);
+    }
+
+    // Frees the slot and lets JudgeList hand the judge its next submission.
+    private void finished(long submissionId) {
+        judges.onJudgeFree(this, submissionId);
+        if (closeWhenIdle && getInFlightCount() == 0) {
+            closeSession();
+        }
+    }
+
+    private void handlePingResponse(Map<String, Object> packet) {
+        Object reportedLoad = packet.get("load");
+        if (reportedLoad instanceof Number) {
+            load = ((Number) reportedLoad).doubleValue();
+        }
+        // Update judge's ping, load, and time delta values
+        // Implement the logic to update the judge's statistics in the database
+    }
+
+    private void handleMalformed(Map<String, Object> packet) {
+        logger.error("Malformed packet: {}", packet);
+        logEvent(JsonEventLog.Level.ERROR, "malformed json packet");
+    }
+
+    private void handleMalformed(String payload) {
+        logger.error("Malformed payload: {}", payload);
+        logEvent(JsonEventLog.Level.ERROR, "malformed json payload");
+    }
+
+    private void sendResponse(Map<String, Object> response) {
+        try {
+            send(response);
+        } catch (IOException e) {
+            logger.error("Error sending response", e);
+        }
+    }
+
+    private void send(Map<String, Object> packet) throws IOException {
+        PacketCodec current = codec;
+        WebSocketMessage<?> message;
+        if (current != null) {
+            message = new BinaryMessage(current.encode(packet));
+        } else {
+            String packetJson = objectMapper.writeValueAsString(packet);
+            message = new TextMessage(packetJson);
+        }
+        offer(message, packet);
+    }
+
+    // Sends packet with the source spliced in as its last member, without unescaping or re-escaping the source.
+    private void sendSource(SubmissionSource source, Map<String, Object> packet) throws IOException {
+        PacketCodec current = codec;
+        if (current == null) {
+            // Text frames are Strings in Spring: the packet text is built around the source in a single copy.
+            offer(new TextMessage(source.toJsonText(packet)), packet);
+            return;
+        }
+
+        ByteBuffer frame = current.encodeJson(source.toJsonPacket(packet));
+        if (!outbound.offer(new BinaryMessage(frame), () -> BufferPool.release(frame))) {
+            BufferPool.release(frame);
+            rejected(packet);
+        }
+    }
+
+    private void offer(WebSocketMessage<?> message, Map<String, Object> packet) throws IOException {
+        if (!outbound.offer(message)) {
+            rejected(packet);
+        }
+    }
+
+    // A closed connection is a failure; a full queue is only backpressure.
+    private void rejected(Map<String, Object> packet) throws IOException {
+        if (outbound.isClosed()) {
+            throw new IOException("Connection to judge " + judgeName + " is closing, dropping " + packet.get("name"));
+        }
+        throw new OutboundQueue.FullException("Outbound queue full for judge " + judgeName + " (" + outbound.getQueuedBytes()
+                + " bytes queued), dropping " + packet.get("name"));
+    }
+
+    private void ping() {
+        sendResponse(Map.of("name", "ping", "when", System.currentTimeMillis()));
+    }
+
+    private void logEvent(JsonEventLog.Level level, String action) {
+        logEvent(level, action, null, JsonEventLog.NO_SUBMISSION);
+    }
+
+    private void logEvent(JsonEventLog.Level level, String action, String info) {
+        logEvent(level, action, info, JsonEventLog.NO_SUBMISSION);
+    }
+
+    private void logEvent(JsonEventLog.Level level, String action, Map<String, Object> packet) {
+        Object submissionId = packet != null ? packet.get("submission-id") : null;
+        logEvent(level, action, null, submissionId != null ? Long.parseLong(submissionId.toString()) : JsonEventLog.NO_SUBMISSION);
+    }
+
+    void logEvent(JsonEventLog.Level level, String action, String info, long submissionId) {
+        eventLog.log(level, judgeName, remoteAddress, submissionId, action, info);
+    }
+
+    // A submission's final result must not be dropped, so these wait for room in the event log instead.
+    private void logResult(JsonEventLog.Level level, String action, Map<String, Object> packet) {
+        logResult(level, action, null, Long.parseLong(packet.get("submission-id").toString()));
+    }
+
+    private void logResult(JsonEventLog.Level level, String action, String info, long submissionId) {
+        eventLog.logBlocking(level, judgeName, remoteAddress, submissionId, action, info);
+    }
+}
@@ -6,9 +6,16 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 public class JudgeDaemon implements CommandLineRunner {
@@ -20,6 +27,56 @@ public class JudgeDaemon implements CommandLineRunner {
     @Value("${bridged.django.address}")
     private String bridgedDjangoAddress;
 
+    @Value("${bridged.event-log.enabled:true}")
+    private boolean eventLogEnabled;
+
+    @Value("${bridged.event-log.directory:logs}")
+    private String eventLogDirectory;
+
+    @Value("${bridged.event-log.capacity:65536}")
+    private int eventLogCapacity;
+
+    @Value("${bridged.event-log.segment-size:67108864}")
+    private int eventLogSegmentSize;
+
+    @Value("${bridged.event-log.segments:8}")
+    private int eventLogSegments;
+
+    @Value("${bridged.admission.max-queue-depth:100000}")
+    private int admissionMaxQueueDepth;
+
+    @Value("${bridged.admission.priority-rates:0,0,0,0}")
+    private double[] admissionPriorityRates;
+
+    @Value("${bridged.admission.user-rate:0}")
+    private double admissionUserRate;
+
+    @Value("${bridged.admission.contest-rate:0}")
+    private double admissionContestRate;
+
+    @Value("${bridged.admission.burst-seconds:10}")
+    private double admissionBurstSeconds;
+
+    // 0 uses one actor thread per available core.
+    @Value("${bridged.pipeline.actor-threads:0}")
+    private int pipelineActorThreads;
+
+    @Value("${bridged.pipeline.persistence-threads:4}")
+    private int pipelinePersistenceThreads;
+
+    // After this long the sweep stops starting new chunks, and dispatch opens once the running ones finish.
+    @Value("${bridged.reconcile.timeout-seconds:300}")
+    private long reconcileTimeoutSeconds;
+
+    @Value("${bridged.reconcile.threads:4}")
+    private int reconcileThreads;
+
+    @Value("${bridged.reconcile.chunk-size:10000}")
+    private long reconcileChunkSize;
+
+    @Value("${bridged.trace.path:}")
+    private String tracePath;
+
     private final JudgeService judgeService;
     private final SubmissionService submissionService;
 
@@ -29,19 +86,69 @@ public class JudgeDaemon implements CommandLineRunner {
     }
 
     @Override
-    public void run(String... args) {
+    public void run(String... args) throws IOException {
+        // Resetting the judges table is a small sweep and has to finish before any judge can connect again.
         resetJudges();
-        updateSubmissions();
 
-        JudgeList judges = new JudgeList();
+        // Judges may connect while in-progress submissions are reconciled, but dispatch stays gated until then.
+        JudgeList judges = new JudgeList(false);
+
+        JsonEventLog eventLog = new JsonEventLog(eventLogEnabled, Paths.get(eventLogDirectory), "judge-bridge",
+                eventLogCapacity, eventLogSegmentSize, eventLogSegments);
+        eventLog.start();
+
+        int actorThreads = pipelineActorThreads > 0 ? pipelineActorThreads : Runtime.getRuntime().availableProcessors();
+        JudgePipeline pipeline = new JudgePipeline(actorThreads, pipelinePersistenceThreads);
+        JudgeHandler judgeHandler = new JudgeHandler(judgeService, judges, eventLog, pipeline);
+        AdmissionControl admissionControl = new AdmissionControl(judges::getQueuedCount, admissionMaxQueueDepth,
+                Arrays.copyOf(admissionPriorityRates, judges.getPriorities()), admissionUserRate, admissionContestRate,
+                admissionBurstSeconds);
+        SpringHandler springHandler = new SpringHandler(judges, admissionControl);
+
+        TraceRecorder traceRecorder = tracePath.isEmpty() ? null : new TraceRecorder(Paths.get(tracePath));
+        if (traceRecorder != null) {
+            judgeHandler.setTraceRecorder(traceRecorder);
+            springHandler.setTraceRecorder(traceRecorder);
+            logger.info("Recording inbound packets to {}", tracePath);
+        }
 
-        Server judgeServer = new Server(bridgedJudgeAddress, new JudgeHandler(judges));
-        Server djangoServer = new Server(bridgedDjangoAddress, new SpringHandler(judges));
+        // Rows created once the listeners are up have larger ids, so the sweep never reaches them and the site can
+        // submit while it runs. Dispatch stays gated until it ends, since older rows may still be reset.
+        long cutoff = submissionService.getMaxSubmissionId();
+
+        Server judgeServer = new Server(bridgedJudgeAddress, judgeHandler);
+        Server djangoServer = new Server(bridgedDjangoAddress, springHandler);
 
         ExecutorService executorService = Executors.newFixedThreadPool(2);
         executorService.submit(judgeServer::serveForever);
         executorService.submit(djangoServer::serveForever);
 
+        ExecutorService reconcilers = Executors.newFixedThreadPool(reconcileThreads);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        long reconcileStart = System.nanoTime();
+        CompletableFuture<Long> sweep = updateSubmissions(cutoff, reconcilers, cancelled);
+        // Timing out only stops new chunks from starting. Dispatch waits for the chunks already running, so no
+        // reset can land after a judge has been handed work.
+        sweep.copy().orTimeout(reconcileTimeoutSeconds, TimeUnit.SECONDS).whenComplete((ignored, e) -> {
+            if (e instanceof TimeoutException) {
+                cancelled.set(true);
+                logger.error("Reconciling in-progress submissions took over {} s, stopping after the running chunks",
+                        reconcileTimeoutSeconds);
+            }
+        });
+        sweep.whenComplete((next, e) -> {
+            reconcilers.shutdown();
+            if (e != null) {
+                logger.error("Failed to reconcile in-progress submissions, starting dispatch anyway", e);
+            } else if (next <= cutoff) {
+                logger.error("Left in-progress submissions from {} to {} unreconciled, starting dispatch", next, cutoff);
+            } else {
+                logger.info("Reconciled in-progress submissions up to {} in {} ms", cutoff,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reconcileStart));
+            }
+            judges.markReady();
+        });
+
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             logger.info("Exiting due to shutdown signal");
             judgeServer.shutdown();
@@ -52,6 +159,15 @@ public class JudgeDaemon implements CommandLineRunner {
             } catch (InterruptedException e) {
                 logger.error("Error while waiting for executor service to terminate", e);
             }
+            pipeline.shutdown();
+            eventLog.close();
+            if (traceRecorder != null) {
+                try {
+                    traceRecorder.close();
+                } catch (IOException e) {
+                    logger.error("Error closing trace", e);
+                }
+            }
         }));
     }
 
@@ -59,7 +175,32 @@ public class JudgeDaemon implements CommandLineRunner {
         judgeService.resetJudges();
     }
 
-    private void updateSubmissions() {
-        submissionService.updateInProgressSubmissions();
+    // Resets in-progress submissions with ids up to the cutoff in fixed-size id ranges, several at a time. Each range
+    // is its own bounded query, so no single cursor spans the whole table. Completes with the lowest id not yet
+    // claimed by a worker: past the cutoff unless the sweep was cancelled.
+    private CompletableFuture<Long> updateSubmissions(long cutoff, ExecutorService reconcilers, AtomicBoolean cancelled) {
+        AtomicLong next = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[reconcileThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = CompletableFuture.runAsync(() -> {
+                long from;
+                while (!cancelled.get() && (from = next.getAndAdd(reconcileChunkSize)) <= cutoff) {
+                    long to = Math.min(cutoff, from + reconcileChunkSize - 1);
+                    try {
+                        submissionService.updateInProgressSubmissions(from, to);
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        logger.error("Failed to reconcile submissions {} to {}", from, to, e);
+                    }
+                }
+            }, reconcilers);
+        }
+        return CompletableFuture.allOf(workers).thenApply(ignored -> {
+            if (failed.get() > 0) {
+                logger.error("{} reconcile chunks failed", failed.get());
+            }
+            return Math.min(next.get(), cutoff + 1);
+        });
     }
 }
\ No newline at end of file
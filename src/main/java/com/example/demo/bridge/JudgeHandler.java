@@ -1,297 +1,187 @@
 package com.example.demo.bridge;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
 
+// Transport stage for judge connections. Spring shares one handler across every judge session, so this class keeps
+// no per-session fields: it decodes on the I/O thread and hands each packet to the session's JudgeConnection.
 public class JudgeHandler extends TextWebSocketHandler {
     private static final Logger logger = LoggerFactory.getLogger(JudgeHandler.class);
-    private static final Logger jsonLog = LoggerFactory.getLogger("judge.json.bridge");
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
+    // Packets that only carry progress for downstream consumers and never change dispatch state, mapped to their log action.
+    private static final Map<String, String> RELAY_ACTIONS = Map.of(
+            "test-case-status", "test-case",
+            "compile-message", "compile-message",
+            "batch-begin", "batch-begin",
+            "batch-end", "batch-end"
+    );
+
     private final JudgeService judgeService;
-    private final Map<String, WebSocketSession> judges = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService pingExecutor = new ScheduledThreadPoolExecutor(1);
+    private final JudgeList judgeList;
+    private final JsonEventLog eventLog;
+    private final JudgePipeline pipeline;
+    private final Map<String, JudgeConnection> connections = new ConcurrentHashMap<>();
+    private final Map<String, JudgeConnection> judges = new ConcurrentHashMap<>();
+    private final List<PacketSink> relaySinks = new CopyOnWriteArrayList<>();
+    private volatile TraceRecorder traceRecorder;
+
+    public JudgeHandler(JudgeService judgeService, JudgeList judgeList, JsonEventLog eventLog, JudgePipeline pipeline) {
+        this.judgeService = judgeService;
+        this.judgeList = judgeList;
+        this.eventLog = eventLog;
+        this.pipeline = pipeline;
+    }
 
-    private WebSocketSession session;
-    private String judgeName;
-    private boolean isWorking;
-    private Long workingSubmissionId;
+    public void addRelaySink(PacketSink sink) {
+        relaySinks.add(sink);
+    }
 
-    public JudgeHandler(JudgeService judgeService) {
-        this.judgeService = judgeService;
+    public void removeRelaySink(PacketSink sink) {
+        relaySinks.remove(sink);
+    }
+
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+    }
+
+    public JudgeConnection getJudge(String name) {
+        return judges.get(name);
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public JudgePipeline getPipeline() {
+        return pipeline;
     }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
-        this.session = session;
-        logger.info("Judge connected from: {}", session.getRemoteAddress());
-        jsonLog.info(makeJsonLog("connect"));
+        JudgeConnection connection = new JudgeConnection(session, judgeService, judgeList, eventLog, pipeline, judges);
+        connections.put(session.getId(), connection);
+        connection.opened();
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-        pingExecutor.shutdown();
-        judges.remove(judgeName);
-        if (judgeName != null) {
-            judgeService.disconnectJudge(judgeName);
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.recordClose(session.getId());
         }
-        logger.info("Judge disconnected from: {} with name {}", session.getRemoteAddress(), judgeName);
-        jsonLog.info(makeJsonLog("disconnect", "judge disconnected"));
-        if (isWorking) {
-            judgeService.handleSubmissionError(workingSubmissionId, "IE", "IE", "");
-            jsonLog.error(makeJsonLog("close", "IE due to shutdown on grading", workingSubmissionId));
+        JudgeConnection connection = connections.remove(session.getId());
+        if (connection != null) {
+            connection.closed();
         }
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        JudgeConnection connection = connections.get(session.getId());
+        if (connection == null) {
+            return;
+        }
+        // TextMessage holds a String, so getting at the bytes re-encodes the whole payload. Only pay for that when
+        // something consumes them; with no sinks registered, progress packets take the parsed path like any other.
+        TraceRecorder recorder = traceRecorder;
+        boolean relaying = !relaySinks.isEmpty();
+        if (recorder != null || relaying) {
+            byte[] data = message.asBytes();
+            if (recorder != null) {
+                recorder.record(TraceRecorder.Source.JUDGE_TEXT, session.getId(), data);
+            }
+            if (relaying && relay(connection, data)) {
+                return;
+            }
+        }
+
         String payload = message.getPayload();
         Map<String, Object> packet = parsePacket(payload);
 
         if (packet != null) {
-            String packetName = (String) packet.get("name");
-            switch (packetName) {
-                case "handshake":
-                    handleHandshake(packet);
-                    break;
-                case "supported-problems":
-                    handleSupportedProblems(packet);
-                    break;
-                case "grading-begin":
-                    handleGradingBegin(packet);
-                    break;
-                case "grading-end":
-                    handleGradingEnd(packet);
-                    break;
-                case "compile-error":
-                    handleCompileError(packet);
-                    break;
-                case "compile-message":
-                    handleCompileMessage(packet);
-                    break;
-                case "batch-begin":
-                    handleBatchBegin(packet);
-                    break;
-                case "batch-end":
-                    handleBatchEnd(packet);
-                    break;
-                case "test-case-status":
-                    handleTestCaseStatus(packet);
-                    break;
-                case "internal-error":
-                    handleInternalError(packet);
-                    break;
-                case "submission-terminated":
-                    handleSubmissionTerminated(packet);
-                    break;
-                case "ping-response":
-                    handlePingResponse(packet);
-                    break;
-                default:
-                    handleMalformed(packet);
-                    break;
-            }
+            connection.receive(packet);
         } else {
-            handleMalformed(payload);
+            connection.receiveMalformed(payload);
         }
     }
 
-    private Map<String, Object> parsePacket(String payload) {
-        try {
-            return objectMapper.readValue(payload, Map.class);
-        } catch (IOException e) {
-            logger.error("Error parsing packet", e);
-            return null;
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+        JudgeConnection connection = connections.get(session.getId());
+        PacketCodec codec = connection != null ? connection.getCodec() : null;
+        if (codec == null) {
+            // Judges that did not negotiate a codec are rejected the same way TextWebSocketHandler always did.
+            super.handleBinaryMessage(session, message);
+            return;
         }
-    }
-
-    private void handleHandshake(Map<String, Object> packet) {
-        String judgeId = (String) packet.get("id");
-        String key = (String) packet.get("key");
 
-        if (authenticate(judgeId, key)) {
-            judgeName = judgeId;
-            judges.put(judgeName, session);
-            pingExecutor.scheduleAtFixedRate(this::ping, 0, 10, TimeUnit.SECONDS);
-            judgeService.connectJudge(judgeName);
-            sendResponse(Map.of("name", "handshake-success"));
-            logger.info("Judge authenticated: {} ({})", session.getRemoteAddress(), judgeId);
-            jsonLog.info(makeJsonLog("auth", "judge successfully authenticated"));
-        } else {
-            logger.warn("Judge authentication failure: {}", session.getRemoteAddress());
-            jsonLog.warn(makeJsonLog("auth", "judge failed authentication", judgeId));
-            session.close();
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            ByteBuffer payload = message.getPayload().duplicate();
+            byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            recorder.record(TraceRecorder.Source.JUDGE_BINARY, session.getId(), data);
         }
-    }
 
-    private boolean authenticate(String judgeId, String key) {
-        // Implement judge authentication logic here
-        // Example using HMAC-SHA256:
+        Map<String, Object> packet;
         try {
-            String secretKey = "your-secret-key";
-            Mac mac = Mac.getInstance("HmacSHA256");
-            SecretKeySpec secretKeySpec = new SecretKeySpec(secretKey.getBytes(), "HmacSHA256");
-            mac.init(secretKeySpec);
-            byte[] hashBytes = mac.doFinal(judgeId.getBytes());
-            String computedHash = Base64.getEncoder().encodeToString(hashBytes);
-            return computedHash.equals(key);
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            logger.error("Error during judge authentication", e);
-            return false;
+            packet = codec.decode(message.getPayload());
+        } catch (IOException | DataFormatException e) {
+            logger.error("Error decoding {} packet", codec.getName(), e);
+            connection.receiveUndecodable(codec.getName());
+            return;
         }
+        connection.receive(packet);
     }
 
-    private void handleSupportedProblems(Map<String, Object> packet) {
-        // Update supported problems for the judge
-        // Implement the logic to update the judge's supported problems in the database
-        jsonLog.info(makeJsonLog("update-problems", String.valueOf(packet.get("problems").wait())));
-    }
-
-    private void handleGradingBegin(Map<String, Object> packet) {
-        Long submissionId = Long.parseLong(packet.get("submission-id").toString());
-        isWorking = true;
-        workingSubmissionId = submissionId;
-        // Update submission status to "G" (Grading) in the database
-        // Delete existing test case records for the submission
-        jsonLog.info(makeJsonLog("grading-begin", packet));
-    }
-
-    private void handleGradingEnd(Map<String, Object> packet) {
-        Long submissionId = Long.parseLong(packet.get("submission-id").toString());
-        isWorking = false;
-        workingSubmissionId = null;
-        // Update submission status, result, score, time, memory, etc. in the database
-        // Update user statistics and problem statistics
-        // Post grading-end event
-        jsonLog.info(makeJsonLog("grading-end", packet));
-    }
-
-    private void handleCompileError(Map<String, Object> packet) {
-        Long submissionId = Long.parseLong(packet.get("submission-id").toString());
-        String errorMessage = (String) packet.get("log");
-        isWorking = false;
-        workingSubmissionId = null;
-        // Update submission status to "CE" (Compile Error) and save the error message in the database
-        // Post compile-error event
-        jsonLog.info(makeJsonLog("compile-error", packet));
-    }
-
-    private void handleCompileMessage(Map<String, Object> packet) {
-        Long submissionId = Long.parseLong(packet.get("submission-id").toString());
-        String compileMessage = (String) packet.get("log");
-        // Update submission with the compile message in the database
-        // Post compile-message event
-        jsonLog.info(makeJsonLog("compile-message", packet));
-    }
-
-    private void handleBatchBegin(Map<String, Object> packet) {
-        // Handle batch begin logic
-        jsonLog.info(makeJsonLog("batch-begin", packet));
-    }
-
-    private void handleBatchEnd(Map<String, Object> packet) {
-        // Handle batch end logic
-        jsonLog.info(makeJsonLog("batch-end", packet));
-    }
-
-    private void handleTestCaseStatus(Map<String, Object> packet) {
-        Long submissionId = Long.parseLong(packet.get("submission-id").toString());
-        // Update test case results in the database
-        // Post test-case event
-        jsonLog.info(makeJsonLog("test-case", packet));
-    }
-
-    private void handleInternalError(Map<String, Object> packet) {
-        Long submissionId = Long.parseLong(packet.get("submission-id").toString());
-        String errorMessage = (String) packet.get("message");
-        isWorking = false;
-        workingSubmissionId = null;
-        // Update submission status to "IE" (Internal Error) and save the error message in the database
-        // Post internal-error event
-        jsonLog.info(makeJsonLog("internal-error", packet));
-    }
-
-    private void handleSubmissionTerminated(Map<String, Object> packet) {
-        Long submissionId = Long.parseLong(packet.get("submission-id").toString());
-        isWorking = false;
-        workingSubmissionId = null;
-        // Update submission status to "AB" (Aborted) in the database
-        // Post aborted event
-        jsonLog.info(makeJsonLog("aborted", packet));
-    }
-
-    private void handlePingResponse(Map<String, Object> packet) {
-        // Update judge's ping, load, and time delta values
-        // Implement the logic to update the judge's statistics in the database
-    }
-
-    private void handleMalformed(Map<String, Object> packet) {
-        logger.error("Malformed packet: {}", packet);
-        jsonLog.error(makeJsonLog("malformed json packet"));
-    }
-
-    private void handleMalformed(String payload) {
-        logger.error("Malformed payload: {}", payload);
-        jsonLog.error(makeJsonLog("malformed json payload"));
-    }
-
-    private void sendResponse(Map<String, Object> response) {
-        try {
-            String responseJson = objectMapper.writeValueAsString(response);
-            session.sendMessage(new TextMessage(responseJson));
-        } catch (IOException e) {
-            logger.error("Error sending response", e);
+    private boolean relay(JudgeConnection connection, byte[] data) {
+        PacketScanner.Header header = PacketScanner.scan(data, 0, data.length);
+        if (header == null || !header.hasSubmissionId()) {
+            return false;
+        }
+        String action = RELAY_ACTIONS.get(header.getName());
+        if (action == null) {
+            return false;
         }
-    }
-
-    private void ping() {
-        sendResponse(Map.of("name", "ping", "when", System.currentTimeMillis()));
-    }
-
-    private String makeJsonLog(String action) {
-        return makeJsonLog(action, null, null);
-    }
 
-    private String makeJsonLog(String action, String info) {
-        return makeJsonLog(action, info, null);
+        // Forwarded on the connection's actor so sinks and the event log see it in order with the judge's other packets.
+        ByteBuffer packet = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        connection.inOrder(() -> forward(connection, header, action, packet));
+        return true;
     }
 
-    private String makeJsonLog(String action, Map<String, Object> packet) {
-        Long submissionId = packet != null ? Long.parseLong(packet.get("submission-id").toString()) : null;
-        return makeJsonLog(action, null, submissionId);
+    private void forward(JudgeConnection connection, PacketScanner.Header header, String action, ByteBuffer packet) {
+        for (PacketSink sink : relaySinks) {
+            try {
+                sink.relay(header.getName(), header.getSubmissionId(), packet.duplicate(), false);
+            } catch (RuntimeException e) {
+                logger.error("Error relaying {} packet for submission {}", header.getName(), header.getSubmissionId(), e);
+            }
+        }
+        connection.logEvent(JsonEventLog.Level.INFO, action, null, header.getSubmissionId());
     }
 
-    private String makeJsonLog(String action, String info, Long submissionId) {
-        Map<String, Object> logData = Map.of(
-                "judge", judgeName,
-                "address", session.getRemoteAddress().toString(),
-                "submission", submissionId,
-                "action", action,
-                "info", info
-        );
+    private Map<String, Object> parsePacket(String payload) {
         try {
-            return objectMapper.writeValueAsString(logData);
-        } catch (JsonProcessingException e) {
-            logger.error("Error creating JSON log", e);
-            return "";
+            return objectMapper.readValue(payload, Map.class);
+        } catch (IOException e) {
+            logger.error("Error parsing packet", e);
+            return null;
         }
     }
-}
\ No newline at end of file
+}
@@ -3,72 +3,143 @@ package com.example.demo.bridge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static java.util.stream.Collectors.toSet;
+
 public class JudgeList {
     private static final Logger logger = LoggerFactory.getLogger(JudgeList.class);
 
     private static final int PRIORITIES = 4;
     private static final int REJUDGE_PRIORITY = 2; // Adjust according to your needs
+    private static final int MIN_TOMBSTONES_TO_COMPACT = 1024;
 
     private final ConcurrentLinkedQueue<Object> queue;
-    private final ConcurrentHashMap<Long, Judge> submissionMap;
-    private final ConcurrentHashMap<Long, Object> nodeMap;
-    private final Set<JudgeHandler> judges;
+    // Every queued or dispatched submission, guarded by lock.
+    private final LongObjectMap<SubmissionData> submissions;
+    // Number of queued submissions, readable without the lock.
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    // Cancelled queue nodes are only marked and left in place; compaction sweeps them out in the background.
+    private final AtomicInteger tombstones = new AtomicInteger();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "judge-queue-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Judge> judges;
     private final ReentrantLock lock;
+    private volatile boolean ready;
 
     public JudgeList() {
+        this(true);
+    }
+
+    public JudgeList(boolean ready) {
         this.queue = new ConcurrentLinkedQueue<>();
         for (int i = 0; i < PRIORITIES; i++) {
             queue.add(new PriorityMarker(i));
         }
-        this.submissionMap = new ConcurrentHashMap<>();
-        this.nodeMap = new ConcurrentHashMap<>();
+        this.submissions = new LongObjectMap<>();
         this.judges = new HashSet<>();
         this.lock = new ReentrantLock();
+        this.ready = ready;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void markReady() {
+        lock.lock();
+        try {
+            if (ready) {
+                return;
+            }
+            ready = true;
+            logger.info("Dispatch enabled with {} judges connected", judges.size());
+            for (Judge judge : new ArrayList<>(judges)) {
+                if (judge.hasFreeSlot() && !judge.isDisabled()) {
+                    handleFreeJudge(judge);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void handleFreeJudge(Judge judge) {
+        if (!ready) {
+            return;
+        }
         lock.lock();
         try {
-            Object node = queue.peek();
+            // Keep filling the judge's free slots from the head of the queue.
+            Iterator<Object> iterator = queue.iterator();
             int priority = 0;
-            while (node != null) {
-                if (node instanceof PriorityMarker) {
+            while (iterator.hasNext() && judge.hasFreeSlot()) {
+                Object node = iterator.next();
+                if (node instanceof SubmissionData && ((SubmissionData) node).isCancelled()) {
+                    iterator.remove();
+                } else if (node instanceof PriorityMarker) {
                     priority = ((PriorityMarker) node).getPriority() + 1;
-                } else if (priority >= REJUDGE_PRIORITY && countNotDisabled() > 1 &&
-                        judges.stream().filter(j -> !j.isWorking() && !j.isDisabled()).count() <= 1) {
+                } else if (priority >= REJUDGE_PRIORITY && isLastFreeSlot(judges)) {
                     return;
                 } else {
                     SubmissionData submissionData = (SubmissionData) node;
                     if (judge.canJudge(submissionData.getProblem(), submissionData.getLanguage(), submissionData.getJudgeId())) {
-                        submissionMap.put(submissionData.getId(), judge);
                         try {
                             judge.submit(submissionData.getId(), submissionData.getProblem(), submissionData.getLanguage(), submissionData.getSource());
+                        } catch (OutboundQueue.FullException e) {
+                            // Backpressure, not failure: the submission stays queued and the judge is offered the
+                            // queue again from onJudgeWritable once its writer has drained.
+                            logger.info("Judge {} is backlogged, leaving {} queued: {}", judge.getName(), submissionData.getId(), e.getMessage());
+                            return;
                         } catch (Exception e) {
                             logger.error("Failed to dispatch {} ({}, {}) to {}", submissionData.getId(), submissionData.getProblem(), submissionData.getLanguage(), judge.getName(), e);
                             judges.remove(judge);
                             return;
                         }
-                        logger.info("Dispatched queued submission {}: {}", submissionData.getId(), judge.getName());
-                        queue.remove(node);
-                        nodeMap.remove(submissionData.getId());
-                        break;
+                        logger.info("Dispatched queued submission {} after {} ms: {} ({}/{} slots)", submissionData.getId(),
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submissionData.getEnqueuedAt()), judge.getName(),
+                                judge.getInFlightCount(), judge.getSlots());
+                        iterator.remove();
+                        queuedCount.decrementAndGet();
+                        submissionData.dispatch(judge);
                     }
                 }
-                node = queue.peek();
             }
         } finally {
             lock.unlock();
         }
     }
 
-    private int countNotDisabled() {
-        return (int) judges.stream().filter(judge -> !judge.isDisabled()).count();
+    // Low priority work never takes the last free slot among these judges, so a high priority submission always
+    // has somewhere to go. A single one-slot judge is never held back.
+    private static boolean isLastFreeSlot(Collection<Judge> judges) {
+        int slots = 0;
+        int free = 0;
+        for (Judge judge : judges) {
+            if (!judge.isDisabled()) {
+                slots += judge.getSlots();
+                free += Math.max(0, judge.getSlots() - judge.getInFlightCount());
+            }
+        }
+        return slots > 1 && free <= 1;
     }
 
     public void register(Judge judge) {
@@ -121,18 +192,22 @@ public class JudgeList {
     public void remove(Judge judge) {
         lock.lock();
         try {
-            Long submission = judge.getCurrentSubmission();
-            if (submission != null) {
-                submissionMap.remove(submission);
+            List<SubmissionData> inFlight = new ArrayList<>();
+            submissions.forEachValue(submissionData -> {
+                if (submissionData.getJudge() == judge) {
+                    inFlight.add(submissionData);
+                }
+            });
+            for (SubmissionData submissionData : inFlight) {
+                submissions.remove(submissionData.getId());
             }
             judges.remove(judge);
 
-            // Since we reserve a judge for high priority submissions when there are more than one,
-            // we'll need to start judging if there is exactly one judge and it's free.
-            if (judges.size() == 1) {
-                Judge availableJudge = judges.iterator().next();
-                if (!availableJudge.isWorking()) {
-                    handleFreeJudge(availableJudge);
+            // Losing capacity can lift the high priority reservation (e.g. down to one one-slot judge), so give
+            // the remaining free judges a chance at the queue.
+            for (Judge remaining : new ArrayList<>(judges)) {
+                if (remaining.hasFreeSlot() && !remaining.isDisabled()) {
+                    handleFreeJudge(remaining);
                 }
             }
         } finally {
@@ -140,6 +215,18 @@ public class JudgeList {
         }
     }
 
+    // A judge whose outbound queue was full has caught up; fill its free slots again.
+    public void onJudgeWritable(Judge judge) {
+        lock.lock();
+        try {
+            if (judges.contains(judge) && judge.hasFreeSlot() && !judge.isDisabled()) {
+                handleFreeJudge(judge);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public Set<Judge> getJudges() {
         return judges;
     }
@@ -148,8 +235,8 @@ public class JudgeList {
         logger.info("Judge available after grading {}: {}", submission, judge.getName());
         lock.lock();
         try {
-            submissionMap.remove(submission);
-            judge.setWorking(false);
+            submissions.remove(submission);
+            judge.release(submission);
             handleFreeJudge(judge);
         } finally {
             lock.unlock();
@@ -160,36 +247,113 @@ public class JudgeList {
         logger.info("Abort request: {}", submission);
         lock.lock();
         try {
-            Judge judge = submissionMap.get(submission);
-            if (judge != null) {
-                judge.abort();
+            SubmissionData submissionData = submissions.get(submission);
+            if (submissionData == null) {
+                return false;
+            }
+            if (submissionData.isDispatched()) {
+                submissionData.getJudge().abort(submission);
                 return true;
-            } else {
-                Object node = nodeMap.remove(submission);
-                if (node != null) {
-                    queue.remove(node);
+            }
+            cancelQueued(submissionData);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Cancels every queued submission and aborts every dispatched one matching all of the given non-null filters,
+    // in a single pass over the submission table.
+    public BulkAbort abortMatching(String contestId, String problem, String userId) {
+        if (contestId == null && problem == null && userId == null) {
+            throw new IllegalArgumentException("Bulk abort needs at least one of contest, problem or user");
+        }
+        logger.info("Bulk abort request: contest {}, problem {}, user {}", contestId, problem, userId);
+        lock.lock();
+        try {
+            List<SubmissionData> matched = new ArrayList<>();
+            submissions.forEachValue(submissionData -> {
+                if ((contestId == null || contestId.equals(submissionData.getContestId()))
+                        && (problem == null || problem.equals(submissionData.getProblem()))
+                        && (userId == null || userId.equals(submissionData.getUserId()))) {
+                    matched.add(submissionData);
+                }
+            });
+
+            long[] cancelled = new long[matched.size()];
+            int cancelledCount = 0;
+            int judgeAborted = 0;
+            for (SubmissionData submissionData : matched) {
+                if (submissionData.isDispatched()) {
+                    submissionData.getJudge().abort(submissionData.getId());
+                    judgeAborted++;
+                } else {
+                    cancelQueued(submissionData);
+                    cancelled[cancelledCount++] = submissionData.getId();
                 }
-                return false;
             }
+            logger.info("Bulk abort cancelled {} queued and aborted {} dispatched submissions", cancelledCount, judgeAborted);
+            return new BulkAbort(Arrays.copyOf(cancelled, cancelledCount), judgeAborted);
         } finally {
             lock.unlock();
         }
     }
 
+    private void cancelQueued(SubmissionData submissionData) {
+        submissions.remove(submissionData.getId());
+        submissionData.cancel();
+        queuedCount.decrementAndGet();
+        if (tombstones.incrementAndGet() >= Math.max(MIN_TOMBSTONES_TO_COMPACT, queuedCount.get())
+                && compacting.compareAndSet(false, true)) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    // Runs without the lock: the queue is concurrent, and a node is only ever removed once it is cancelled.
+    private void compact() {
+        try {
+            tombstones.set(0);
+            int removed = 0;
+            for (Iterator<Object> iterator = queue.iterator(); iterator.hasNext(); ) {
+                Object node = iterator.next();
+                if (node instanceof SubmissionData && ((SubmissionData) node).isCancelled()) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+            logger.info("Compacted {} cancelled submissions out of the queue", removed);
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    public int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public int getPriorities() {
+        return PRIORITIES;
+    }
+
     public boolean checkPriority(int priority) {
         return priority >= 0 && priority < PRIORITIES;
     }
 
-    public void judge(long id, String problem, String language, String source, String judgeId, int priority) {
+    public void judge(long id, String problem, String language, SubmissionSource source, String judgeId, int priority) {
+        judge(id, problem, language, source, judgeId, priority, null, null);
+    }
+
+    public void judge(long id, String problem, String language, SubmissionSource source, String judgeId, int priority,
+                      String userId, String contestId) {
         lock.lock();
         try {
-            if (submissionMap.containsKey(id) || nodeMap.containsKey(id)) {
+            if (submissions.containsKey(id)) {
                 // Already judging, don't queue again. This can happen during batch rejudges, rejudges should be idempotent.
                 return;
             }
 
             Set<Judge> candidates = judges.stream().filter(judge -> judge.canJudge(problem, language, judgeId)).collect(toSet());
-            Set<Judge> available = candidates.stream().filter(judge -> !judge.isWorking() && !judge.isDisabled()).collect(toSet());
+            Set<Judge> available = candidates.stream().filter(judge -> judge.hasFreeSlot() && !judge.isDisabled()).collect(toSet());
 
             if (judgeId != null) {
                 logger.info("Specified judge {} is{}available", judgeId, available.isEmpty() ? " not " : " ");
@@ -197,33 +361,67 @@ public class JudgeList {
                 logger.info("Free judges: {}", available.size());
             }
 
-            if (candidates.size() > 1 && available.size() == 1 && priority >= REJUDGE_PRIORITY) {
+            if (priority >= REJUDGE_PRIORITY && isLastFreeSlot(candidates)) {
                 available.clear();
             }
 
-            if (!available.isEmpty()) {
-                // Schedule the submission on the judge reporting least load.
-                Judge judge = available.stream().min(Comparator.comparingDouble(j -> j.getLoad() + Math.random())).get();
-                logger.info("Dispatched submission {} to: {}", id, judge.getName());
-                submissionMap.put(id, judge);
+            // Until startup reconciliation finishes, everything is queued and dispatched by markReady.
+            if (!ready) {
+                available.clear();
+            }
+
+            while (!available.isEmpty()) {
+                // Schedule the submission on the judge with the most free capacity, then the least reported load.
+                Judge judge = available.stream().min(Comparator
+                        .comparingDouble((Judge j) -> (double) j.getInFlightCount() / j.getSlots())
+                        .thenComparingDouble(j -> j.getLoad() + Math.random())).get();
+                available.remove(judge);
                 try {
                     judge.submit(id, problem, language, source);
+                } catch (OutboundQueue.FullException e) {
+                    // A backlogged judge stays registered; try the next one, or queue until one drains.
+                    logger.info("Judge {} is backlogged, not dispatching {} to it: {}", judge.getName(), id, e.getMessage());
+                    continue;
                 } catch (Exception e) {
                     logger.error("Failed to dispatch {} ({}, {}) to {}", id, problem, language, judge.getName(), e);
                     judges.remove(judge);
-                    judge(id, problem, language, source, judgeId, priority);
+                    continue;
                 }
-            } else {
-                SubmissionData submissionData = new SubmissionData(id, problem, language, source, judgeId);
-                nodeMap.put(id, submissionData);
-                queue.add(submissionData);
-                logger.info("Queued submission: {}", id);
+                logger.info("Dispatched submission {} to: {}", id, judge.getName());
+                SubmissionData submissionData = new SubmissionData(id, problem, language, null, judgeId, userId, contestId);
+                submissionData.dispatch(judge);
+                submissions.put(id, submissionData);
+                return;
             }
+
+            SubmissionData submissionData = new SubmissionData(id, problem, language, source, judgeId, userId, contestId);
+            submissions.put(id, submissionData);
+            queue.add(submissionData);
+            queuedCount.incrementAndGet();
+            logger.info("Queued submission: {}", id);
         } finally {
             lock.unlock();
         }
     }
 
+    public static class BulkAbort {
+        private final long[] cancelled;
+        private final int judgeAborted;
+
+        public BulkAbort(long[] cancelled, int judgeAborted) {
+            this.cancelled = cancelled;
+            this.judgeAborted = judgeAborted;
+        }
+
+        public long[] getCancelled() {
+            return cancelled;
+        }
+
+        public int getJudgeAborted() {
+            return judgeAborted;
+        }
+    }
+
     private static class PriorityMarker {
         private final int priority;
 
@@ -236,19 +434,64 @@ public class JudgeList {
         }
     }
 
+    // A submission's bookkeeping from enqueue until its judge reports it finished. The source is only held while
+    // the submission is queued.
     private static class SubmissionData {
         private final long id;
         private final String problem;
         private final String language;
-        private final String source;
+        private SubmissionSource source;
         private final String judgeId;
-
-        public SubmissionData(long id, String problem, String language, String source, String judgeId) {
+        private final String userId;
+        private final String contestId;
+        private final long enqueuedAt;
+        private Judge judge;
+        private volatile boolean cancelled;
+
+        public SubmissionData(long id, String problem, String language, SubmissionSource source, String judgeId,
+                              String userId, String contestId) {
             this.id = id;
             this.problem = problem;
             this.language = language;
             this.source = source;
             this.judgeId = judgeId;
+            this.userId = userId;
+            this.contestId = contestId;
+            this.enqueuedAt = System.nanoTime();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            source = null;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getContestId() {
+            return contestId;
+        }
+
+        public void dispatch(Judge judge) {
+            this.judge = judge;
+            this.source = null;
+        }
+
+        public boolean isDispatched() {
+            return judge != null;
+        }
+
+        public Judge getJudge() {
+            return judge;
+        }
+
+        public long getEnqueuedAt() {
+            return enqueuedAt;
         }
 
         public long getId() {
@@ -263,7 +506,7 @@ public class JudgeList {
             return language;
         }
 
-        public String getSource() {
+        public SubmissionSource getSource() {
             return source;
         }
 
@@ -0,0 +1,134 @@
+package com.example.demo.bridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Stages behind the judge transport. Packets are decoded on the I/O thread that received them, then handed to the
+// connection's actor, which runs them one at a time and in order on the shared actor pool. Database writes go
+// through a second ordered queue per connection on the persistence pool, so a slow query never holds up packet
+// handling for that judge or any other.
+public class JudgePipeline {
+    private static final Logger logger = LoggerFactory.getLogger(JudgePipeline.class);
+
+    // Tasks an actor runs before yielding its pool thread, so one busy judge cannot starve the others.
+    private static final int ACTOR_BATCH = 64;
+
+    private final Stage actorStage;
+    private final Stage persistenceStage;
+    private final ScheduledExecutorService scheduler;
+
+    public JudgePipeline(int actorThreads, int persistenceThreads) {
+        this.actorStage = new Stage(Executors.newFixedThreadPool(actorThreads, daemonThreads("judge-actor")));
+        this.persistenceStage = new Stage(Executors.newFixedThreadPool(persistenceThreads, daemonThreads("judge-persistence")));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("judge-scheduler"));
+    }
+
+    public SerialExecutor newActor() {
+        return new SerialExecutor(actorStage);
+    }
+
+    public SerialExecutor newPersistenceQueue() {
+        return new SerialExecutor(persistenceStage);
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period, TimeUnit unit) {
+        return scheduler.scheduleAtFixedRate(task, 0, period, unit);
+    }
+
+    public int getActorQueueDepth() {
+        return actorStage.depth.get();
+    }
+
+    public int getPersistenceQueueDepth() {
+        return persistenceStage.depth.get();
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+        actorStage.pool.shutdown();
+        persistenceStage.pool.shutdown();
+        try {
+            persistenceStage.pool.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            logger.error("Error while waiting for persistence tasks to finish", e);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class Stage {
+        private final ExecutorService pool;
+        private final AtomicInteger depth = new AtomicInteger();
+
+        Stage(ExecutorService pool) {
+            this.pool = pool;
+        }
+    }
+
+    public static class SerialExecutor implements Executor {
+        private final Stage stage;
+        private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicInteger depth = new AtomicInteger();
+
+        private SerialExecutor(Stage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            mailbox.add(task);
+            depth.incrementAndGet();
+            stage.depth.incrementAndGet();
+            schedule();
+        }
+
+        public int getQueueDepth() {
+            return depth.get();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                stage.pool.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                Runnable task;
+                for (int i = 0; i < ACTOR_BATCH && (task = mailbox.poll()) != null; i++) {
+                    depth.decrementAndGet();
+                    stage.depth.decrementAndGet();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Error in judge pipeline task", e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                if (!mailbox.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.example.demo.bridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per-connection outbound queue. WebSocketSession.sendMessage is not safe for concurrent use, so every send is
+// enqueued here and a single writer task drains it. Frames that carry their own length prefix (the zlib protocol)
+// can be coalesced: pending binary frames are merged into one message, which the receiver splits again by prefix.
+// Everything else, JSON text and codec frames, has no prefix and is written one message per packet.
+public class OutboundQueue {
+    private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_COALESCED_BYTES = 256 * 1024;
+
+    private static final ExecutorService writers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "outbound-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final WebSocketSession session;
+    private final boolean coalesceBinary;
+    private final int maxQueuedBytes;
+    private final int maxCoalescedBytes;
+
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicBoolean backlogged = new AtomicBoolean();
+    private volatile long peakQueuedBytes;
+    private volatile boolean closed;
+    private volatile boolean closing;
+    private volatile Runnable onDrained;
+
+    public OutboundQueue(WebSocketSession session) {
+        this(session, false);
+    }
+
+    // Only frames that carry their own length prefix may be coalesced, since the peer must be able to split them.
+    public OutboundQueue(WebSocketSession session, boolean coalesceBinary) {
+        this(session, coalesceBinary, DEFAULT_MAX_QUEUED_BYTES, DEFAULT_MAX_COALESCED_BYTES);
+    }
+
+    public OutboundQueue(WebSocketSession session, boolean coalesceBinary, int maxQueuedBytes, int maxCoalescedBytes) {
+        this.session = session;
+        this.coalesceBinary = coalesceBinary;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxCoalescedBytes = maxCoalescedBytes;
+    }
+
+    // Runs on the writer once the queue empties after an offer was rejected, so a caller that backed off knows
+    // when to try again. Must not block; it holds up the writer.
+    public void setOnDrained(Runnable onDrained) {
+        this.onDrained = onDrained;
+    }
+
+    // Never blocks. Returns false when the connection is closed or already has too many bytes queued, so callers
+    // can apply backpressure instead of waiting on a slow peer's TCP window.
+    public boolean offer(WebSocketMessage<?> message) {
+        return offer(message, null);
+    }
+
+    // onWritten runs once the message has been written or dropped by close(), e.g. to return a pooled buffer.
+    // It is not run when offer returns false; the caller still owns the message then.
+    public boolean offer(WebSocketMessage<?> message, Runnable onWritten) {
+        if (closed || closing) {
+            return false;
+        }
+        int size = message.getPayloadLength();
+        long queued = queuedBytes.addAndGet(size);
+        // A single oversized message is still accepted into an empty queue, or it could never be sent.
+        if (queued > maxQueuedBytes && queued != size) {
+            queuedBytes.addAndGet(-size);
+            rejected.increment();
+            backlogged.set(true);
+            return false;
+        }
+        if (queued > peakQueuedBytes) {
+            peakQueuedBytes = queued;
+        }
+        pending.add(new Pending(message, onWritten));
+        schedule();
+        return true;
+    }
+
+    // Closes the session from the writer once everything queued before this call has been written, so the close
+    // never runs concurrently with a send. Offers made afterwards are rejected. Never blocks.
+    public void closeAfterPending() {
+        if (closed || closing) {
+            return;
+        }
+        closing = true;
+        pending.add(new Pending(null, null));
+        schedule();
+    }
+
+    // True once the queue no longer accepts messages, as opposed to being temporarily full.
+    public boolean isClosed() {
+        return closed || closing;
+    }
+
+    public void close() {
+        closed = true;
+        Pending dropped;
+        while ((dropped = pending.poll()) != null) {
+            dropped.written();
+        }
+        queuedBytes.set(0);
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getPeakQueuedBytes() {
+        return peakQueuedBytes;
+    }
+
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    // sendMessage calls; framesWritten / writes is how many packets each write carried on average.
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            writers.execute(this::drain);
+        }
+    }
+
+    private boolean canCoalesce(int bytes, Pending next) {
+        return next != null && next.message instanceof BinaryMessage
+                && bytes + next.message.getPayloadLength() <= maxCoalescedBytes;
+    }
+
+    private void drain() {
+        Pending current = null;
+        ByteBuffer batch = null;
+        try {
+            while (!closed && (current = pending.poll()) != null) {
+                WebSocketMessage<?> message = current.message;
+                if (message == null) {
+                    // The close sentinel: everything queued before it has gone out.
+                    current = null;
+                    close();
+                    session.close();
+                    break;
+                }
+                int frames = 1;
+                int bytes = message.getPayloadLength();
+                if (coalesceBinary && message instanceof BinaryMessage && canCoalesce(bytes, pending.peek())) {
+                    // Each merged frame is copied out and released straight away; only the batch is left to send.
+                    batch = BufferPool.acquire(maxCoalescedBytes);
+                    batch.put(((BinaryMessage) message).getPayload().duplicate());
+                    current.written();
+                    current = null;
+                    Pending next;
+                    while (canCoalesce(bytes, next = pending.peek())) {
+                        pending.poll();
+                        batch.put(((BinaryMessage) next.message).getPayload().duplicate());
+                        bytes += next.message.getPayloadLength();
+                        frames++;
+                        next.written();
+                    }
+                    batch.flip();
+                    message = new BinaryMessage(batch);
+                }
+
+                session.sendMessage(message);
+                if (current != null) {
+                    current.written();
+                    current = null;
+                }
+                if (batch != null) {
+                    BufferPool.release(batch);
+                    batch = null;
+                }
+                queuedBytes.addAndGet(-bytes);
+                framesWritten.add(frames);
+                writes.increment();
+            }
+            if (!closed && pending.isEmpty()) {
+                drained();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error writing to {}, dropping outbound queue", session.getRemoteAddress(), e);
+            if (current != null) {
+                current.written();
+            }
+            if (batch != null) {
+                BufferPool.release(batch);
+            }
+            close();
+        } finally {
+            scheduled.set(false);
+            // A message offered after the final poll but before the flag was cleared would otherwise be stranded.
+            if (!closed && !pending.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    private void drained() {
+        Runnable callback = onDrained;
+        if (callback != null && backlogged.compareAndSet(true, false)) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                logger.error("Error in outbound drain callback for {}", session.getRemoteAddress(), e);
+            }
+        }
+    }
+
+    // Thrown by senders when offer is rejected. The connection is still healthy, just behind; callers should retry
+    // once it drains rather than treat the peer as failed.
+    public static class FullException extends IOException {
+        public FullException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Pending {
+        private final WebSocketMessage<?> message;
+        private final Runnable onWritten;
+
+        Pending(WebSocketMessage<?> message, Runnable onWritten) {
+            this.message = message;
+            this.onWritten = onWritten;
+        }
+
+        void written() {
+            if (onWritten != null) {
+                onWritten.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.demo.bridge;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Binary frame encoding negotiated in the handshake. Every frame starts with a tag byte whose high nibble is the
+// payload format and whose low nibble is the compression applied to it, chosen per packet by payload size.
+// One codec belongs to one connection and reuses its native Deflater and Inflater until close().
+public class PacketCodec {
+    public static final String CBOR = "cbor";
+
+    private static final int MAX_ALLOWED_PACKET_SIZE = 8 * 1024 * 1024;
+
+    private static final int FORMAT_JSON = 0;
+    private static final int FORMAT_CBOR = 1;
+    private static final int COMPRESSION_NONE = 0;
+    private static final int COMPRESSION_DEFLATE = 1;
+
+    private static final ObjectMapper jsonMapper = new ObjectMapper();
+    private static final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+
+    private final int compressionThreshold;
+    private final Deflater deflater = new Deflater();
+    private final Inflater inflater = new Inflater();
+    private volatile boolean closed;
+
+    private PacketCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    // Returns null when the judge did not offer a codec we support, in which case it keeps speaking JSON text.
+    public static PacketCodec negotiate(Object offered, int compressionThreshold) {
+        if (offered instanceof Collection && ((Collection<?>) offered).contains(CBOR)) {
+            return new PacketCodec(compressionThreshold);
+        }
+        return null;
+    }
+
+    public String getName() {
+        return CBOR;
+    }
+
+    public ByteBuffer encode(Map<String, Object> packet) throws IOException {
+        byte[] payload = cborMapper.writeValueAsBytes(packet);
+        int compression = COMPRESSION_NONE;
+        if (payload.length >= compressionThreshold) {
+            byte[] compressed = deflate(payload);
+            // Sources and logs that are already dense can grow under deflate; send those as-is.
+            if (compressed != null && compressed.length < payload.length) {
+                payload = compressed;
+                compression = COMPRESSION_DEFLATE;
+            }
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(1 + payload.length);
+        frame.put((byte) (FORMAT_CBOR << 4 | compression));
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    // Encodes an already serialized JSON packet, given as segments, into a pooled frame. The caller releases the
+    // frame to BufferPool once it has been written.
+    public ByteBuffer encodeJson(ByteBuffer... segments) {
+        int length = PacketSegments.remaining(segments);
+        ByteBuffer frame = BufferPool.acquire(1 + PacketSegments.deflateBound(length));
+        if (length >= compressionThreshold && deflate(segments, frame)) {
+            if (frame.position() - 1 < length) {
+                frame.flip();
+                return frame;
+            }
+            frame.clear();
+        }
+
+        frame.put((byte) (FORMAT_JSON << 4 | COMPRESSION_NONE));
+        PacketSegments.copy(segments, frame);
+        frame.flip();
+        return frame;
+    }
+
+    public Map<String, Object> decode(ByteBuffer frame) throws IOException, DataFormatException {
+        if (!frame.hasRemaining()) {
+            throw new IOException("Empty packet frame");
+        }
+        // Checked before anything is copied; inflated payloads are held to the same cap as they grow.
+        if (frame.remaining() - 1 > MAX_ALLOWED_PACKET_SIZE) {
+            throw new IOException("Packet exceeds " + MAX_ALLOWED_PACKET_SIZE + " bytes");
+        }
+        int tag = frame.get() & 0xff;
+        byte[] payload = new byte[frame.remaining()];
+        frame.get(payload);
+
+        switch (tag & 0xf) {
+            case COMPRESSION_NONE:
+                break;
+            case COMPRESSION_DEFLATE:
+                payload = inflate(payload);
+                break;
+            default:
+                throw new IOException("Unknown packet compression: " + (tag & 0xf));
+        }
+
+        switch (tag >> 4) {
+            case FORMAT_JSON:
+                return jsonMapper.readValue(payload, Map.class);
+            case FORMAT_CBOR:
+                return cborMapper.readValue(payload, Map.class);
+            default:
+                throw new IOException("Unknown packet format: " + (tag >> 4));
+        }
+    }
+
+    // Frees the native zlib state. Packets encoded afterwards, which the closed connection drops anyway, go out
+    // uncompressed.
+    public void close() {
+        synchronized (deflater) {
+            closed = true;
+            deflater.end();
+        }
+        synchronized (inflater) {
+            inflater.end();
+        }
+    }
+
+    // Returns null once the codec is closed.
+    private byte[] deflate(byte[] data) {
+        synchronized (deflater) {
+            if (closed) {
+                return null;
+            }
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                outputStream.write(buffer, 0, count);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+    // Writes the tag and the deflated segments into frame, or returns false once the codec is closed.
+    private boolean deflate(ByteBuffer[] segments, ByteBuffer frame) {
+        synchronized (deflater) {
+            if (closed) {
+                return false;
+            }
+            deflater.reset();
+            frame.put((byte) (FORMAT_JSON << 4 | COMPRESSION_DEFLATE));
+            PacketSegments.deflate(deflater, segments, frame);
+            return true;
+        }
+    }
+
+    private byte[] inflate(byte[] data) throws IOException, DataFormatException {
+        synchronized (inflater) {
+            if (closed) {
+                throw new IOException("Codec is closed");
+            }
+            inflater.reset();
+            inflater.setInput(data);
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length * 2);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated deflate stream");
+                }
+                if (outputStream.size() + count > MAX_ALLOWED_PACKET_SIZE) {
+                    throw new IOException("Packet exceeds " + MAX_ALLOWED_PACKET_SIZE + " bytes when inflated");
+                }
+                outputStream.write(buffer, 0, count);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.demo.bridge;
+
+import java.nio.charset.StandardCharsets;
+
+public final class PacketScanner {
+    private static final byte[] NAME_KEY = "name".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SUBMISSION_ID_KEY = "submission-id".getBytes(StandardCharsets.US_ASCII);
+    // Deeper packets are left to the full parse rather than recursed into here.
+    private static final int MAX_DEPTH = 64;
+
+    // Known packet names are returned as constants so scanning a relayed packet allocates nothing but the header.
+    private static final String[] KNOWN_NAMES = {
+            "handshake", "supported-problems", "grading-begin", "grading-end", "compile-error",
+            "compile-message", "batch-begin", "batch-end", "test-case-status", "internal-error",
+            "submission-terminated", "ping-response"
+    };
+    private static final byte[][] KNOWN_NAME_BYTES = new byte[KNOWN_NAMES.length][];
+
+    static {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            KNOWN_NAME_BYTES[i] = KNOWN_NAMES[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private PacketScanner() {
+    }
+
+    // Reads the top-level "name" and "submission-id" fields of a JSON packet without materializing it.
+    // The whole packet is validated, so a packet the full parse would reject as malformed is never relayed.
+    // Returns null for anything the scanner does not understand, including duplicate "name" or "submission-id"
+    // keys; callers fall back to a full parse.
+    public static Header scan(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int i = skipWhitespace(data, offset, end);
+        if (i >= end || data[i] != '{') {
+            return null;
+        }
+        i = skipWhitespace(data, i + 1, end);
+
+        String name = null;
+        long submissionId = 0;
+        boolean hasSubmissionId = false;
+
+        while (i < end && data[i] != '}') {
+            if (data[i] != '"') {
+                return null;
+            }
+            int keyStart = i + 1;
+            int keyEnd = skipString(data, i, end);
+            if (keyEnd < 0) {
+                return null;
+            }
+            i = skipWhitespace(data, keyEnd, end);
+            if (i >= end || data[i] != ':') {
+                return null;
+            }
+            i = skipWhitespace(data, i + 1, end);
+            if (i >= end) {
+                return null;
+            }
+
+            int valueEnd;
+            if (regionEquals(data, keyStart, keyEnd - 1, NAME_KEY)) {
+                if (name != null || data[i] != '"') {
+                    return null;
+                }
+                valueEnd = skipString(data, i, end);
+                if (valueEnd < 0) {
+                    return null;
+                }
+                name = readName(data, i + 1, valueEnd - 1);
+                if (name == null) {
+                    return null;
+                }
+            } else if (regionEquals(data, keyStart, keyEnd - 1, SUBMISSION_ID_KEY)) {
+                valueEnd = hasSubmissionId ? -1 : skipValue(data, i, end, 0);
+                if (valueEnd < 0) {
+                    return null;
+                }
+                int numberStart = i;
+                int numberEnd = valueEnd;
+                if (data[i] == '"') {
+                    numberStart++;
+                    numberEnd--;
+                }
+                if (numberStart >= numberEnd) {
+                    return null;
+                }
+                long value = 0;
+                for (int j = numberStart; j < numberEnd; j++) {
+                    int digit = data[j] - '0';
+                    if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                        return null;
+                    }
+                    value = value * 10 + digit;
+                }
+                submissionId = value;
+                hasSubmissionId = true;
+            } else {
+                valueEnd = skipValue(data, i, end, 0);
+                if (valueEnd < 0) {
+                    return null;
+                }
+            }
+
+            i = skipWhitespace(data, valueEnd, end);
+            if (i < end && data[i] == ',') {
+                i = skipWhitespace(data, i + 1, end);
+                if (i >= end || data[i] != '"') {
+                    return null;
+                }
+            } else if (i >= end || data[i] != '}') {
+                return null;
+            }
+        }
+
+        // Only whitespace may follow the closing brace.
+        if (i >= end || skipWhitespace(data, i + 1, end) != end) {
+            return null;
+        }
+        return name != null ? new Header(name, submissionId, hasSubmissionId) : null;
+    }
+
+    private static String readName(byte[] data, int start, int end) {
+        for (int i = 0; i < KNOWN_NAME_BYTES.length; i++) {
+            if (regionEquals(data, start, end, KNOWN_NAME_BYTES[i])) {
+                return KNOWN_NAMES[i];
+            }
+        }
+        for (int i = start; i < end; i++) {
+            if (data[i] == '\\') {
+                return null;
+            }
+        }
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static boolean regionEquals(byte[] data, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (data[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(byte[] data, int i, int end) {
+        while (i < end && (data[i] == ' ' || data[i] == '\t' || data[i] == '\n' || data[i] == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    // Returns the index just past the closing quote of the string starting at i, or -1 if it is unterminated, holds
+    // a raw control character, a bad escape or malformed UTF-8.
+    private static int skipString(byte[] data, int i, int end) {
+        for (i++; i < end; i++) {
+            int b = data[i] & 0xff;
+            if (b == '"') {
+                return i + 1;
+            } else if (b == '\\') {
+                if (++i >= end) {
+                    return -1;
+                }
+                switch (data[i]) {
+                    case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+                        break;
+                    case 'u':
+                        if (i + 4 >= end) {
+                            return -1;
+                        }
+                        for (int j = i + 1; j <= i + 4; j++) {
+                            if (Character.digit(data[j], 16) < 0) {
+                                return -1;
+                            }
+                        }
+                        i += 4;
+                        break;
+                    default:
+                        return -1;
+                }
+            } else if (b < 0x20) {
+                return -1;
+            } else if (b >= 0x80) {
+                int continuation = b >= 0xc2 && b <= 0xdf ? 1 : b >= 0xe0 && b <= 0xef ? 2 : b >= 0xf0 && b <= 0xf4 ? 3 : -1;
+                if (continuation < 0 || i + continuation >= end) {
+                    return -1;
+                }
+                for (int j = 0; j < continuation; j++) {
+                    if ((data[++i] & 0xc0) != 0x80) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Returns the index just past the value starting at i, or -1 if it is not a valid JSON value.
+    private static int skipValue(byte[] data, int i, int end, int depth) {
+        switch (data[i]) {
+            case '"':
+                return skipString(data, i, end);
+            case '{':
+            case '[':
+                return depth < MAX_DEPTH ? skipContainer(data, i, end, depth + 1) : -1;
+            case 't':
+                return skipLiteral(data, i, end, "true");
+            case 'f':
+                return skipLiteral(data, i, end, "false");
+            case 'n':
+                return skipLiteral(data, i, end, "null");
+            default:
+                return skipNumber(data, i, end);
+        }
+    }
+
+    private static int skipContainer(byte[] data, int i, int end, int depth) {
+        boolean object = data[i] == '{';
+        byte close = (byte) (object ? '}' : ']');
+        i = skipWhitespace(data, i + 1, end);
+        if (i < end && data[i] == close) {
+            return i + 1;
+        }
+        while (i < end) {
+            if (object) {
+                if (data[i] != '"') {
+                    return -1;
+                }
+                i = skipString(data, i, end);
+                if (i < 0) {
+                    return -1;
+                }
+                i = skipWhitespace(data, i, end);
+                if (i >= end || data[i] != ':') {
+                    return -1;
+                }
+                i = skipWhitespace(data, i + 1, end);
+                if (i >= end) {
+                    return -1;
+                }
+            }
+            i = skipValue(data, i, end, depth);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(data, i, end);
+            if (i >= end) {
+                return -1;
+            } else if (data[i] == close) {
+                return i + 1;
+            } else if (data[i] != ',') {
+                return -1;
+            }
+            i = skipWhitespace(data, i + 1, end);
+        }
+        return -1;
+    }
+
+    private static int skipLiteral(byte[] data, int i, int end, String literal) {
+        if (end - i < literal.length()) {
+            return -1;
+        }
+        for (int j = 0; j < literal.length(); j++) {
+            if (data[i + j] != literal.charAt(j)) {
+                return -1;
+            }
+        }
+        return i + literal.length();
+    }
+
+    // -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+    private static int skipNumber(byte[] data, int i, int end) {
+        if (i < end && data[i] == '-') {
+            i++;
+        }
+        if (i < end && data[i] == '0') {
+            i++;
+        } else {
+            int digits = skipDigits(data, i, end);
+            if (digits == i) {
+                return -1;
+            }
+            i = digits;
+        }
+        if (i < end && data[i] == '.') {
+            int digits = skipDigits(data, i + 1, end);
+            if (digits == i + 1) {
+                return -1;
+            }
+            i = digits;
+        }
+        if (i < end && (data[i] == 'e' || data[i] == 'E')) {
+            i++;
+            if (i < end && (data[i] == '+' || data[i] == '-')) {
+                i++;
+            }
+            int digits = skipDigits(data, i, end);
+            if (digits == i) {
+                return -1;
+            }
+            i = digits;
+        }
+        return i;
+    }
+
+    private static int skipDigits(byte[] data, int i, int end) {
+        while (i < end && data[i] >= '0' && data[i] <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    public static final class Header {
+        private final String name;
+        private final long submissionId;
+        private final boolean hasSubmissionId;
+
+        private Header(String name, long submissionId, boolean hasSubmissionId) {
+            this.name = name;
+            this.submissionId = submissionId;
+            this.hasSubmissionId = hasSubmissionId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSubmissionId() {
+            return submissionId;
+        }
+
+        public boolean hasSubmissionId() {
+            return hasSubmissionId;
+        }
+    }
+}
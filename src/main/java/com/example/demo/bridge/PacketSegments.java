@@ -0,0 +1,44 @@
+package com.example.demo.bridge;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+// Helpers for packets handed over as a list of buffers, so a large value can be written without first being
+// concatenated with the fields around it.
+final class PacketSegments {
+    private PacketSegments() {
+    }
+
+    static int remaining(ByteBuffer[] segments) {
+        int length = 0;
+        for (ByteBuffer segment : segments) {
+            length += segment.remaining();
+        }
+        return length;
+    }
+
+    static void copy(ByteBuffer[] segments, ByteBuffer output) {
+        for (ByteBuffer segment : segments) {
+            output.put(segment.duplicate());
+        }
+    }
+
+    // zlib's compressBound plus room for a preset dictionary id: deflating length bytes never needs more output.
+    static int deflateBound(int length) {
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 4;
+    }
+
+    // Feeds every segment through the deflater and finishes the stream. The output must have deflateBound bytes free.
+    static void deflate(Deflater deflater, ByteBuffer[] segments, ByteBuffer output) {
+        for (ByteBuffer segment : segments) {
+            deflater.setInput(segment.duplicate());
+            while (!deflater.needsInput()) {
+                deflater.deflate(output);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflater.deflate(output);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.example.demo.bridge;
+
+import java.nio.ByteBuffer;
+
+public interface PacketSink {
+    // The packet buffer is only valid for the duration of the call; copy it if it needs to be retained.
+    void relay(String name, long submissionId, ByteBuffer packet, boolean compressed);
+}
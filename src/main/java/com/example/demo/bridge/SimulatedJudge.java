@@ -0,0 +1,111 @@
+package com.example.demo.bridge;
+
+import java.util.Arrays;
+
+// Stand-in for a judge during trace replay. It accepts whatever JudgeList dispatches to it and reports the dispatch
+// back to the replayer; the trace decides when each submission finishes. Disconnecting it, e.g. when the same judge
+// handshakes again, hands it back to the replayer to remove once JudgeList has released its lock.
+public class SimulatedJudge implements Judge {
+    private final String name;
+    private final int slots;
+    private final TraceReplayer replayer;
+    private long[] inFlight;
+    private int inFlightCount;
+    private volatile boolean disabled;
+    private volatile boolean closeWhenIdle;
+    private boolean closed;
+
+    public SimulatedJudge(String name, int slots, TraceReplayer replayer) {
+        this.name = name;
+        this.slots = slots;
+        this.replayer = replayer;
+        this.inFlight = new long[slots];
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean canJudge(String problem, String language, String judgeId) {
+        return judgeId == null || judgeId.equals(name);
+    }
+
+    @Override
+    public boolean isDisabled() {
+        return disabled || closeWhenIdle;
+    }
+
+    @Override
+    public void setDisabled(boolean disabled) {
+        this.disabled = disabled;
+    }
+
+    @Override
+    public double getLoad() {
+        return 0;
+    }
+
+    @Override
+    public int getSlots() {
+        return slots;
+    }
+
+    @Override
+    public synchronized int getInFlightCount() {
+        return inFlightCount;
+    }
+
+    @Override
+    public synchronized boolean hasFreeSlot() {
+        return inFlightCount < slots;
+    }
+
+    @Override
+    public void submit(long submissionId, String problem, String language, SubmissionSource source) {
+        synchronized (this) {
+            if (inFlightCount == inFlight.length) {
+                inFlight = Arrays.copyOf(inFlight, inFlight.length * 2);
+            }
+            inFlight[inFlightCount++] = submissionId;
+        }
+        replayer.dispatched(this, submissionId);
+    }
+
+    @Override
+    public void abort(long submissionId) {
+        // The recorded judge's submission-terminated packet frees the slot, as it would for a real judge.
+    }
+
+    @Override
+    public synchronized boolean release(long submissionId) {
+        for (int i = 0; i < inFlightCount; i++) {
+            if (inFlight[i] == submissionId) {
+                inFlight[i] = inFlight[--inFlightCount];
+                if (closeWhenIdle && inFlightCount == 0) {
+                    close();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void disconnect(boolean force) {
+        if (force || inFlightCount == 0) {
+            close();
+        } else {
+            closeWhenIdle = true;
+        }
+    }
+
+    // Like a real judge's session closing: the replayer removes it from JudgeList after the current record.
+    private void close() {
+        if (!closed) {
+            closed = true;
+            replayer.disconnected(this);
+        }
+    }
+}
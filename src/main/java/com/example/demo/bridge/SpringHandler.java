@@ -1,5 +1,7 @@
 package com.example.demo.bridge;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,21 +10,35 @@ import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 
 public class SpringHandler extends TextWebSocketHandler {
     private static final Logger logger = LoggerFactory.getLogger(DjangoHandler.class);
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final JudgeService judgeService;
+    private final AdmissionControl admissionControl;
+    private volatile TraceRecorder traceRecorder;
 
-    public SpringHandler(JudgeService judgeService) {
+    public SpringHandler(JudgeService judgeService, AdmissionControl admissionControl) {
         this.judgeService = judgeService;
+        this.admissionControl = admissionControl;
+    }
+
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws IOException {
         String payload = message.getPayload();
-        Map<String, Object> packet = objectMapper.readValue(payload, Map.class);
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.record(TraceRecorder.Source.SPRING, session.getId(), message.asBytes());
+        }
+
+        int[] source = {-1, -1};
+        Map<String, Object> packet = readPacket(payload, source);
 
         try {
             String packetName = (String) packet.get("name");
@@ -30,11 +46,14 @@ public class SpringHandler extends TextWebSocketHandler {
 
             switch (packetName) {
                 case "submission-request":
-                    result = onSubmission(packet);
+                    result = onSubmission(packet, payload, source);
                     break;
                 case "terminate-submission":
                     result = onTermination(packet);
                     break;
+                case "terminate-submissions":
+                    result = onBulkTermination(packet);
+                    break;
                 case "disconnect-judge":
                     onDisconnectRequest(packet);
                     result = Map.of();
@@ -54,24 +73,75 @@ public class SpringHandler extends TextWebSocketHandler {
         }
     }
 
+    // Parses every top-level member except the source, which the parser skips over without decoding. Submission
+    // sources can be megabytes; the start and end of the source's escaped text in payload go into source instead.
+    private Map<String, Object> readPacket(String payload, int[] source) throws IOException {
+        Map<String, Object> packet = new HashMap<>();
+        try (JsonParser parser = objectMapper.getFactory().createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Packet is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_STRING && "source".equals(field)) {
+                    int start = (int) parser.getTokenLocation().getCharOffset() + 1;
+                    source[0] = start;
+                    source[1] = endOfString(payload, start);
+                    continue;
+                }
+                packet.put(field, objectMapper.readValue(parser, Object.class));
+            }
+        }
+        return packet;
+    }
+
+    // Index of the quote closing the JSON string whose text starts at start. The parser rejects an unterminated
+    // string when it skips it, right after this.
+    private static int endOfString(String payload, int start) {
+        for (int i = start; i < payload.length(); i++) {
+            char c = payload.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return payload.length();
+    }
+
     private void sendResponse(WebSocketSession session, Map<String, Object> response) throws IOException {
         String responseJson = objectMapper.writeValueAsString(response);
         session.sendMessage(new TextMessage(responseJson));
     }
 
-    private Map<String, Object> onSubmission(Map<String, Object> data) {
+    private Map<String, Object> onSubmission(Map<String, Object> data, String payload, int[] source) {
         Long id = (Long) data.get("submission-id");
         Long problem = (Long) data.get("problem-id");
         String language = (String) data.get("language");
-        String source = (String) data.get("source");
         String judgeId = (String) data.get("judge-id");
         Integer priority = (Integer) data.get("priority");
 
-        if (!judgeService.checkPriority(priority)) {
+        if (source[0] < 0 || !judgeService.checkPriority(priority)) {
             return Map.of("name", "bad-request");
         }
 
-        judgeService.judge(id, problem, language, source, judgeId, priority);
+        String userId = optionalString(data.get("user-id"));
+        String contestId = optionalString(data.get("contest-id"));
+
+        switch (admissionControl.tryAdmit(priority, userId, contestId)) {
+            case QUEUE_FULL:
+                logger.warn("Rejected submission {} at priority {}: queue full", id, priority);
+                return Map.of("name", "queue-full", "submission-id", id);
+            case RATE_LIMITED:
+                logger.warn("Rejected submission {} at priority {}: rate limited", id, priority);
+                return Map.of("name", "rate-limited", "submission-id", id);
+            default:
+                break;
+        }
+
+        judgeService.judge(id, problem, language, SubmissionSource.copyOf(payload, source[0], source[1]),
+                judgeId, priority, userId, contestId);
         return Map.of("name", "submission-received", "submission-id", id);
     }
 
@@ -81,6 +151,23 @@ public class SpringHandler extends TextWebSocketHandler {
         return Map.of("name", "submission-received", "judge-aborted", judgeAborted);
     }
 
+    private Map<String, Object> onBulkTermination(Map<String, Object> data) {
+        String contestId = optionalString(data.get("contest-id"));
+        String problem = optionalString(data.get("problem-id"));
+        String userId = optionalString(data.get("user-id"));
+        if (contestId == null && problem == null && userId == null) {
+            return Map.of("name", "bad-request");
+        }
+
+        JudgeList.BulkAbort result = judgeService.abortMatching(contestId, problem, userId);
+        return Map.of("name", "submissions-terminated", "cancelled", result.getCancelled(),
+                "judge-aborted", result.getJudgeAborted());
+    }
+
+    private static String optionalString(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
     private void onDisconnectRequest(Map<String, Object> data) {
         String judgeId = (String) data.get("judge-id");
         boolean force = (boolean) data.get("force");
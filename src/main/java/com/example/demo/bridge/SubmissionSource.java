@@ -0,0 +1,61 @@
+package com.example.demo.bridge;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// A submission's source as the body of a JSON string, escapes included, exactly as the site sent it.
+// It is never unescaped: the text is spliced verbatim into the JSON packet that carries it to the judge.
+public final class SubmissionSource {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String FIRST_KEY = "\"source\":\"";
+    private static final String NEXT_KEY = ",\"source\":\"";
+    private static final String CLOSE = "\"}";
+
+    private final String json;
+
+    private SubmissionSource(String json) {
+        this.json = json;
+    }
+
+    // Copies the string body between start and end out of the request, so a queued submission keeps only its
+    // source alive and not the whole request around it.
+    public static SubmissionSource copyOf(String request, int start, int end) {
+        return new SubmissionSource(request.substring(start, end));
+    }
+
+    public static SubmissionSource of(String source) throws IOException {
+        String json = objectMapper.writeValueAsString(source);
+        return new SubmissionSource(json.substring(1, json.length() - 1));
+    }
+
+    public int getLength() {
+        return json.length();
+    }
+
+    // Returns the JSON object holding fields followed by "source" as its last member, for a text frame.
+    public String toJsonText(Map<String, Object> fields) throws IOException {
+        String head = objectMapper.writeValueAsString(fields);
+        return head.substring(0, head.length() - 1) + (fields.isEmpty() ? FIRST_KEY : NEXT_KEY) + json + CLOSE;
+    }
+
+    // The same packet as UTF-8 segments to be written in order, for a binary frame.
+    public ByteBuffer[] toJsonPacket(Map<String, Object> fields) throws IOException {
+        byte[] head = objectMapper.writeValueAsBytes(fields);
+        return new ByteBuffer[]{
+                ByteBuffer.wrap(head, 0, head.length - 1),
+                ByteBuffer.wrap((fields.isEmpty() ? FIRST_KEY : NEXT_KEY).getBytes(StandardCharsets.US_ASCII)),
+                ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)),
+                ByteBuffer.wrap(CLOSE.getBytes(StandardCharsets.US_ASCII))
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "SubmissionSource(" + json.length() + " chars)";
+    }
+}
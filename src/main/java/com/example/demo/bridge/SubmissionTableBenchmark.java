@@ -0,0 +1,87 @@
+package com.example.demo.bridge;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Heap retained by submission bookkeeping with a deep queue. The index alone compares the LongObjectMap table with
+// the ConcurrentHashMap<Long, ...> that used to map each queued id to its queue node, over the same node objects;
+// the full run queues every submission on a JudgeList that is not ready yet, so nothing dispatches.
+// Run with -XX:+UseSerialGC -Xms1g -Xmx1g: a fixed heap and a non-regional collector give byte-exact samples.
+public class SubmissionTableBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int submissions = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long firstId = 1_000_000;
+
+        // Every submission shares one source so only the bookkeeping shows up in the numbers.
+        SubmissionSource source = SubmissionSource.of("print(input())");
+        Object[] nodes = new Object[submissions];
+        for (int i = 0; i < submissions; i++) {
+            nodes[i] = new Object();
+        }
+
+        long boxed = boxedIndex(nodes, firstId);
+        long primitive = primitiveIndex(nodes, firstId);
+        System.out.printf("Index saving: %.1f%%%n", 100.0 * (boxed - primitive) / boxed);
+        queuedJudgeList(submissions, firstId, source);
+
+        // The nodes are shared by both indexes, so they have to stay reachable until both have been sampled.
+        System.out.printf("%,d nodes retained throughout%n", nodes.length);
+    }
+
+    // Each structure is built and sampled in its own method, so it is unreachable again before the next baseline.
+    private static long boxedIndex(Object[] nodes, long firstId) {
+        long before = usedMemory();
+        ConcurrentHashMap<Long, Object> nodeMap = new ConcurrentHashMap<>();
+        for (int i = 0; i < nodes.length; i++) {
+            nodeMap.put(firstId + i, nodes[i]);
+        }
+        long bytes = usedMemory() - before;
+        report("ConcurrentHashMap<Long, Object> (" + nodeMap.size() + ")", nodes.length, bytes);
+        return bytes;
+    }
+
+    private static long primitiveIndex(Object[] nodes, long firstId) {
+        long before = usedMemory();
+        LongObjectMap<Object> table = new LongObjectMap<>();
+        for (int i = 0; i < nodes.length; i++) {
+            table.put(firstId + i, nodes[i]);
+        }
+        long bytes = usedMemory() - before;
+        report("LongObjectMap<Object> (" + table.size() + ")", nodes.length, bytes);
+        return bytes;
+    }
+
+    private static void queuedJudgeList(int submissions, long firstId, SubmissionSource source) {
+        long before = usedMemory();
+        JudgeList judges = new JudgeList(false);
+        for (int i = 0; i < submissions; i++) {
+            judges.judge(firstId + i, "aplusb", "PY3", source, null, i % judges.getPriorities(),
+                    "user-" + (i % 1000), null);
+        }
+        long bytes = usedMemory() - before;
+        report("JudgeList (" + judges.getQueuedCount() + " queued)", submissions, bytes);
+    }
+
+    private static void report(String name, int submissions, long bytes) {
+        System.out.printf("%-40s %,12d bytes, %6.1f bytes per submission%n", name, bytes, (double) bytes / submissions);
+    }
+
+    // Lowest heap in use over several collections; a single System.gc() does not always reclaim everything.
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.demo.bridge;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Records every inbound packet into a compact binary trace for offline replay with TraceReplayer.
+// Layout: the MAGIC header, then one record per packet of
+//   source byte | varint nanos since previous record | varint connection id | varint length | payload bytes
+// A judge connection's close is a JUDGE_CLOSE record with an empty payload.
+public class TraceRecorder implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TraceRecorder.class);
+
+    static final byte[] MAGIC = "JBTRACE1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String REDACTED = "<redacted>";
+
+    // Append only: the ordinal is what the trace stores.
+    public enum Source {
+        SPRING, JUDGE_TEXT, JUDGE_BINARY, JUDGE_CLOSE
+    }
+
+    private final DataOutputStream output;
+    private final Map<String, Integer> connectionIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextConnectionId = new AtomicInteger();
+    private long lastNanos;
+    private boolean failed;
+
+    public TraceRecorder(Path path) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024));
+        this.output.write(MAGIC);
+        this.lastNanos = System.nanoTime();
+    }
+
+    public void record(Source source, String sessionId, byte[] payload) {
+        if (source == Source.JUDGE_TEXT) {
+            payload = redact(payload);
+        }
+        write(source, connectionIds.computeIfAbsent(sessionId, id -> nextConnectionId.getAndIncrement()), payload);
+    }
+
+    // Records that a judge connection closed, so a replay drops the judge and whatever it was grading.
+    public void recordClose(String sessionId) {
+        Integer connectionId = connectionIds.remove(sessionId);
+        if (connectionId != null) {
+            write(Source.JUDGE_CLOSE, connectionId, new byte[0]);
+        }
+    }
+
+    private void write(Source source, int connectionId, byte[] payload) {
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            long now = System.nanoTime();
+            try {
+                output.writeByte(source.ordinal());
+                writeVarLong(output, now - lastNanos);
+                writeVarLong(output, connectionId);
+                writeVarLong(output, payload.length);
+                output.write(payload);
+                lastNanos = now;
+            } catch (IOException e) {
+                // A broken trace must never take the bridge down with it; stop recording instead.
+                logger.error("Error writing trace, recording stopped", e);
+                failed = true;
+            }
+        }
+    }
+
+    // Handshakes carry the judge's key, which must not end up in a trace file. Judges only handshake in JSON text,
+    // and only once per connection, so re-serializing that one packet costs nothing worth measuring.
+    private static byte[] redact(byte[] payload) {
+        PacketScanner.Header header = PacketScanner.scan(payload, 0, payload.length);
+        if (header != null && !"handshake".equals(header.getName())) {
+            return payload;
+        }
+        try {
+            Map<String, Object> packet = objectMapper.readValue(payload, Map.class);
+            if (packet.containsKey("key")) {
+                packet.put("key", REDACTED);
+                return objectMapper.writeValueAsBytes(packet);
+            }
+            return payload;
+        } catch (IOException e) {
+            // Unparseable packets are recorded as-is; they cannot be a handshake the bridge would accept.
+            return payload;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+
+    static void writeVarLong(OutputStream output, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            output.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    static long readVarLong(DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in trace");
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.demo.bridge;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.zip.DataFormatException;
+
+// Drives a JudgeList from a trace written by TraceRecorder. Site packets are replayed as-is; judge packets only
+// decide when a simulated judge connects and when the submission it was given finishes, so dispatch decisions
+// are made afresh by the JudgeList under test. Simulated judges report dispatches back through dispatched().
+// Run main with a trace path and a speed (1, 10, ... or max) to replay against SimulatedJudges on one machine.
+public class TraceReplayer {
+    private static final Logger logger = LoggerFactory.getLogger(TraceReplayer.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    public static final double MAX_SPEED = 0;
+
+    private final JudgeList judges;
+    private final BiFunction<Map<String, Object>, TraceReplayer, Judge> judgeFactory;
+    private final double speed;
+    private final PacketCodec codec = PacketCodec.negotiate(List.of(PacketCodec.CBOR), Integer.MAX_VALUE);
+
+    private final Map<Long, Judge> connections = new HashMap<>();
+    private final Map<Long, Long> enqueuedAt = new ConcurrentHashMap<>();
+    private final Map<Long, Judge> assigned = new ConcurrentHashMap<>();
+    // Judges that disconnected while JudgeList held its lock; removed once the record that caused it is applied.
+    private final ConcurrentLinkedQueue<Judge> disconnected = new ConcurrentLinkedQueue<>();
+    private final Samples handleNanos = new Samples();
+    private final Samples queueWaitNanos = new Samples();
+
+    // Replays against SimulatedJudges with the slot count each recorded judge advertised.
+    public TraceReplayer(JudgeList judges, double speed) {
+        this(judges, TraceReplayer::simulatedJudge, speed);
+    }
+
+    // speed is a multiple of the recorded pace: 1 replays in real time, 10 ten times faster, MAX_SPEED without pauses.
+    // The factory is given each judge's handshake packet.
+    public TraceReplayer(JudgeList judges, BiFunction<Map<String, Object>, TraceReplayer, Judge> judgeFactory, double speed) {
+        this.judges = judges;
+        this.judgeFactory = judgeFactory;
+        this.speed = speed;
+    }
+
+    public void dispatched(Judge judge, long submissionId) {
+        assigned.put(submissionId, judge);
+        Long enqueued = enqueuedAt.remove(submissionId);
+        if (enqueued != null) {
+            queueWaitNanos.add(System.nanoTime() - enqueued);
+        }
+    }
+
+    public void disconnected(Judge judge) {
+        disconnected.add(judge);
+    }
+
+    public Stats replay(Path path) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            byte[] magic = new byte[TraceRecorder.MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, TraceRecorder.MAGIC)) {
+                throw new IOException("Not a bridge trace: " + path);
+            }
+
+            TraceRecorder.Source[] sources = TraceRecorder.Source.values();
+            long start = System.nanoTime();
+            long traceNanos = 0;
+            long records = 0;
+            int source;
+            while ((source = input.read()) >= 0) {
+                traceNanos += TraceRecorder.readVarLong(input);
+                long connectionId = TraceRecorder.readVarLong(input);
+                byte[] payload = new byte[(int) TraceRecorder.readVarLong(input)];
+                input.readFully(payload);
+
+                if (speed > 0) {
+                    long wait = start + (long) (traceNanos / speed) - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                long handleStart = System.nanoTime();
+                try {
+                    apply(sources[source], connectionId, payload);
+                } catch (IOException | DataFormatException | RuntimeException e) {
+                    logger.warn("Skipping unreadable trace record {}", records, e);
+                }
+                Judge judge;
+                while ((judge = disconnected.poll()) != null) {
+                    removeJudge(judge);
+                }
+                handleNanos.add(System.nanoTime() - handleStart);
+                records++;
+            }
+
+            Stats stats = new Stats(records, System.nanoTime() - start, handleNanos, queueWaitNanos);
+            logger.info("Replayed {}: {}", path, stats);
+            return stats;
+        }
+    }
+
+    private void apply(TraceRecorder.Source source, long connectionId, byte[] payload) throws IOException, DataFormatException {
+        Map<String, Object> packet;
+        switch (source) {
+            case SPRING:
+                onSpringPacket(objectMapper.readValue(payload, Map.class));
+                return;
+            case JUDGE_TEXT:
+                packet = objectMapper.readValue(payload, Map.class);
+                break;
+            case JUDGE_BINARY:
+                packet = codec.decode(ByteBuffer.wrap(payload));
+                break;
+            case JUDGE_CLOSE:
+                Judge judge = connections.remove(connectionId);
+                if (judge != null) {
+                    removeJudge(judge);
+                }
+                return;
+            default:
+                return;
+        }
+        onJudgePacket(connectionId, packet);
+    }
+
+    private void onSpringPacket(Map<String, Object> packet) throws IOException {
+        switch (String.valueOf(packet.get("name"))) {
+            case "submission-request":
+                long id = ((Number) packet.get("submission-id")).longValue();
+                enqueuedAt.put(id, System.nanoTime());
+                judges.judge(id, String.valueOf(packet.get("problem-id")), (String) packet.get("language"),
+                        SubmissionSource.of((String) packet.get("source")), (String) packet.get("judge-id"),
+                        ((Number) packet.get("priority")).intValue(), optionalString(packet.get("user-id")),
+                        optionalString(packet.get("contest-id")));
+                break;
+            case "terminate-submission":
+                judges.abort(((Number) packet.get("submission-id")).longValue());
+                break;
+            case "terminate-submissions":
+                judges.abortMatching(optionalString(packet.get("contest-id")), optionalString(packet.get("problem-id")),
+                        optionalString(packet.get("user-id")));
+                break;
+            case "disconnect-judge":
+                judges.disconnect((String) packet.get("judge-id"), (boolean) packet.get("force"));
+                break;
+            case "disable-judge":
+                judges.updateDisableJudge((String) packet.get("judge-id"), (boolean) packet.get("is-disabled"));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onJudgePacket(long connectionId, Map<String, Object> packet) {
+        switch (String.valueOf(packet.get("name"))) {
+            case "handshake":
+                Judge judge = judgeFactory.apply(packet, this);
+                connections.put(connectionId, judge);
+                judges.register(judge);
+                break;
+            case "supported-problems":
+                Judge connected = connections.get(connectionId);
+                if (connected != null) {
+                    judges.updateProblems(connected);
+                }
+                break;
+            case "grading-end":
+            case "compile-error":
+            case "internal-error":
+            case "submission-terminated":
+                // The recorded judge finished this submission; free whichever simulated judge was given it.
+                long submissionId = Long.parseLong(packet.get("submission-id").toString());
+                Judge finished = assigned.remove(submissionId);
+                if (finished != null) {
+                    judges.onJudgeFree(finished, submissionId);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // As when a real judge's connection closes: JudgeList forgets the judge, and whatever it was grading is lost.
+    private void removeJudge(Judge judge) {
+        connections.values().remove(judge);
+        assigned.values().removeIf(assignee -> assignee == judge);
+        judges.remove(judge);
+    }
+
+    private static Judge simulatedJudge(Map<String, Object> handshake, TraceReplayer replayer) {
+        Object slots = handshake.get("slots");
+        return new SimulatedJudge((String) handshake.get("id"), slots instanceof Number ? Math.max(1, ((Number) slots).intValue()) : 1,
+                replayer);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplayer <trace> [speed|max]");
+            System.exit(2);
+        }
+        double speed = args.length < 2 || args[1].equalsIgnoreCase("max") ? MAX_SPEED : Double.parseDouble(args[1]);
+        Stats stats = new TraceReplayer(new JudgeList(true), speed).replay(Paths.get(args[0]));
+        System.out.println(stats);
+    }
+
+    private static String optionalString(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static class Samples {
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    public static class Stats {
+        private final long records;
+        private final long elapsedNanos;
+        private final long[] handleNanos;
+        private final long[] queueWaitNanos;
+
+        private Stats(long records, long elapsedNanos, Samples handleNanos, Samples queueWaitNanos) {
+            this.records = records;
+            this.elapsedNanos = elapsedNanos;
+            this.handleNanos = handleNanos.sorted();
+            this.queueWaitNanos = queueWaitNanos.sorted();
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public double getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : records * 1e9 / elapsedNanos;
+        }
+
+        public long getHandleNanos(double percentile) {
+            return percentile(handleNanos, percentile);
+        }
+
+        public long getQueueWaitNanos(double percentile) {
+            return percentile(queueWaitNanos, percentile);
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d records in %d ms (%.0f/s), handle p50=%dus p99=%dus, "
+                            + "queue wait p50=%dms p90=%dms p99=%dms max=%dms (%d dispatched)",
+                    records, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getRecordsPerSecond(),
+                    TimeUnit.NANOSECONDS.toMicros(getHandleNanos(50)), TimeUnit.NANOSECONDS.toMicros(getHandleNanos(99)),
+                    TimeUnit.NANOSECONDS.toMillis(getQueueWaitNanos(50)), TimeUnit.NANOSECONDS.toMillis(getQueueWaitNanos(90)),
+                    TimeUnit.NANOSECONDS.toMillis(getQueueWaitNanos(99)), TimeUnit.NANOSECONDS.toMillis(getQueueWaitNanos(100)),
+                    queueWaitNanos.length);
+        }
+    }
+}
@@ -10,6 +10,8 @@ import org.springframework.web.socket.handler.BinaryWebSocketHandler;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -24,15 +26,34 @@ public class ZlibPacketHandler extends BinaryWebSocketHandler {
     private static final int MAX_ALLOWED_PACKET_SIZE = 8 * 1024 * 1024;
     private static final int SIZE_PACK_SIZE = 4;
 
+    // Payloads below the threshold are sent as stored (level 0) zlib blocks: still a valid stream for the peer,
+    // but without spending CPU on packets that deflate cannot shrink anyway.
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+    private static final int LARGE_PAYLOAD_SIZE = 64 * 1024;
+    private static final double HIGH_CPU_PRESSURE = 1.0;
+    private static final double MODERATE_CPU_PRESSURE = 0.5;
+    private static final long CPU_SAMPLE_INTERVAL_NANOS = 1_000_000_000L;
+
+    private static final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    private static volatile double cpuPressure;
+    private static volatile long cpuSampledAt = System.nanoTime() - CPU_SAMPLE_INTERVAL_NANOS;
+
     private WebSocketSession session;
+    private OutboundQueue outbound;
     private InetSocketAddress clientAddress;
     private InetSocketAddress serverAddress;
     private byte[] initialTag;
     private boolean gotPacket;
 
+    private final Deflater deflater = new Deflater();
+    private final CompressionStats compressionStats = new CompressionStats();
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private boolean coalesceFrames = true;
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         this.session = session;
+        this.outbound = new OutboundQueue(session, coalesceFrames);
         this.clientAddress = session.getRemoteAddress();
         this.serverAddress = session.getLocalAddress();
         this.initialTag = null;
@@ -44,6 +65,25 @@ public class ZlibPacketHandler extends BinaryWebSocketHandler {
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         onDisconnect();
         onCleanup();
+        outbound.close();
+        logger.info("Compression stats for {}: {}", clientAddress, compressionStats);
+        synchronized (deflater) {
+            deflater.end();
+        }
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    // Frames are length-prefixed, so by default pending ones go out merged into one message. Turn this off for a
+    // peer that reads exactly one frame per WebSocket message. Takes effect from the next connection.
+    public void setCoalesceFrames(boolean coalesceFrames) {
+        this.coalesceFrames = coalesceFrames;
     }
 
     @Override
@@ -52,22 +92,36 @@ public class ZlibPacketHandler extends BinaryWebSocketHandler {
         byte[] data = new byte[payload.remaining()];
         payload.get(data);
 
+        int offset = 0;
         if (initialTag == null) {
             initialTag = Arrays.copyOf(data, SIZE_PACK_SIZE);
-            data = Arrays.copyOfRange(data, SIZE_PACK_SIZE, data.length);
+            offset = SIZE_PACK_SIZE;
         }
 
         try {
-            int size = ByteBuffer.wrap(data).getInt();
-            if (size > MAX_ALLOWED_PACKET_SIZE) {
-                logger.warn("Disconnecting client due to too-large message size ({} bytes): {}", size, clientAddress);
-                throw new DisconnectException();
-            }
+            // A peer that coalesces sends several length-prefixed frames in one message.
+            while (offset < data.length) {
+                if (data.length - offset < SIZE_PACK_SIZE) {
+                    throw new DataFormatException("Truncated packet size");
+                }
+                int size = ByteBuffer.wrap(data, offset, SIZE_PACK_SIZE).getInt();
+                if (size > MAX_ALLOWED_PACKET_SIZE) {
+                    logger.warn("Disconnecting client due to too-large message size ({} bytes): {}", size, clientAddress);
+                    throw new DisconnectException();
+                }
+
+                int bodyOffset = offset + SIZE_PACK_SIZE;
+                if (size < 0 || size > data.length - bodyOffset) {
+                    throw new DataFormatException("Packet size " + size + " exceeds the " + (data.length - bodyOffset) + " bytes left");
+                }
+                byte[] decompressedData = decompress(data, bodyOffset, size);
+                gotPacket = true;
 
-            byte[] decompressedData = decompress(Arrays.copyOfRange(data, SIZE_PACK_SIZE, data.length));
-            String decompressedString = new String(decompressedData);
-            gotPacket = true;
-            onPacket(decompressedString);
+                if (!relaysPackets() || !relay(decompressedData, data, bodyOffset, size)) {
+                    onPacket(new String(decompressedData));
+                }
+                offset = bodyOffset + size;
+            }
         } catch (DisconnectException e) {
             session.close();
         } catch (DataFormatException e) {
@@ -97,6 +151,17 @@ public class ZlibPacketHandler extends BinaryWebSocketHandler {
         // Override this method to handle the received packet data
     }
 
+    // Subclasses that relay packets return true here; otherwise packets go straight to onPacket without being scanned.
+    protected boolean relaysPackets() {
+        return false;
+    }
+
+    // Called with the still-compressed packet body before it is decoded into a String. Returning true marks the
+    // packet as relayed and skips onPacket. Only called when relaysPackets() returns true.
+    protected boolean onRelayPacket(PacketScanner.Header header, ByteBuffer compressed) {
+        return false;
+    }
+
     protected void onConnect() {
         // Override this method to handle the connection event
     }
@@ -114,45 +179,100 @@ public class ZlibPacketHandler extends BinaryWebSocketHandler {
     }
 
     protected void send(String data) throws IOException {
-        byte[] compressedData = compress(data.getBytes());
-        ByteBuffer buffer = ByteBuffer.allocate(SIZE_PACK_SIZE + compressedData.length);
-        buffer.putInt(compressedData.length);
-        buffer.put(compressedData);
-        buffer.flip();
-        session.sendMessage(new BinaryMessage(buffer));
+        send(ByteBuffer.wrap(data.getBytes()));
+    }
+
+    // Sends the segments, in order, as one packet. They are deflated straight into a pooled frame that goes back to
+    // the pool once written, so a large value never has to be joined with the rest of its packet first.
+    protected void send(ByteBuffer... segments) throws IOException {
+        ByteBuffer frame = compress(segments);
+        if (!outbound.offer(new BinaryMessage(frame), () -> BufferPool.release(frame))) {
+            BufferPool.release(frame);
+            throw new OutboundQueue.FullException("Outbound queue full (" + outbound.getQueuedBytes() + " bytes queued): " + clientAddress);
+        }
     }
 
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    // Closes once everything already sent has been written, from the outbound writer.
     protected void close() throws IOException {
-        session.close();
+        outbound.closeAfterPending();
+    }
+
+    private boolean relay(byte[] decompressedData, byte[] data, int bodyOffset, int bodyLength) {
+        PacketScanner.Header header = PacketScanner.scan(decompressedData, 0, decompressedData.length);
+        if (header == null) {
+            return false;
+        }
+        return onRelayPacket(header, ByteBuffer.wrap(data, bodyOffset, bodyLength).slice().asReadOnlyBuffer());
+    }
+
+    private ByteBuffer compress(ByteBuffer[] segments) {
+        int length = PacketSegments.remaining(segments);
+        int level = compressionLevel(length);
+        long start = System.nanoTime();
+
+        ByteBuffer frame = BufferPool.acquire(SIZE_PACK_SIZE + PacketSegments.deflateBound(length));
+        frame.position(SIZE_PACK_SIZE);
+        synchronized (deflater) {
+            deflater.reset();
+            deflater.setLevel(level);
+            PacketSegments.deflate(deflater, segments, frame);
+        }
+        int compressedLength = frame.position() - SIZE_PACK_SIZE;
+        frame.putInt(0, compressedLength);
+        frame.flip();
+
+        compressionStats.record(level, length, compressedLength, System.nanoTime() - start);
+        return frame;
     }
 
-    private byte[] compress(byte[] data) throws IOException {
-        Deflater deflater = new Deflater();
-        deflater.setInput(data);
-        deflater.finish();
+    private int compressionLevel(int size) {
+        if (size < compressionThreshold) {
+            return Deflater.NO_COMPRESSION;
+        }
+        double pressure = cpuPressure();
+        if (pressure >= HIGH_CPU_PRESSURE) {
+            return Deflater.BEST_SPEED;
+        }
+        if (size >= LARGE_PAYLOAD_SIZE) {
+            return pressure >= MODERATE_CPU_PRESSURE ? 3 : 6;
+        }
+        return pressure >= MODERATE_CPU_PRESSURE ? Deflater.BEST_SPEED : 3;
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        while (!deflater.finished()) {
-            int count = deflater.deflate(buffer);
-            outputStream.write(buffer, 0, count);
+    // Load average per core, sampled at most once a second since every connection consults it on every send.
+    private static double cpuPressure() {
+        long now = System.nanoTime();
+        if (now - cpuSampledAt >= CPU_SAMPLE_INTERVAL_NANOS) {
+            cpuSampledAt = now;
+            double load = osBean.getSystemLoadAverage();
+            cpuPressure = load < 0 ? 0 : load / osBean.getAvailableProcessors();
         }
-        outputStream.close();
-        return outputStream.toByteArray();
+        return cpuPressure;
     }
 
-    private byte[] decompress(byte[] data) throws IOException, DataFormatException {
+    private byte[] decompress(byte[] data, int offset, int length) throws IOException, DataFormatException {
         Inflater inflater = new Inflater();
-        inflater.setInput(data);
+        inflater.setInput(data, offset, length);
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        while (!inflater.finished()) {
-            int count = inflater.inflate(buffer);
-            outputStream.write(buffer, 0, count);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsDictionary() || inflater.needsInput())) {
+                    throw new DataFormatException("Incomplete zlib stream");
+                }
+                outputStream.write(buffer, 0, count);
+            }
+            outputStream.close();
+            return outputStream.toByteArray();
+        } finally {
+            inflater.end();
         }
-        outputStream.close();
-        return outputStream.toByteArray();
     }
 
     private static class DisconnectException extends Exception {